@@ -0,0 +1,82 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+import static com.docvolt.usbcontrol.UsbIOService.VPIN_BASE;
+
+import android.util.Log;
+
+/*
+    Base class of the sketches run by SketchScheduler. A sketch only writes the physical pins it owns,
+    and its virtual pins VPIN_BASE and following are mapped to the range it was added with, so
+    several sketches do not step on each other. digitalRead(), digitalWrite(), pinMode(),
+    analogWrite() on the physical pins and waitForPin() go through that mapping. The other
+    Arduino-like functions of UsbIOService address the shared pins and channels directly.
+*/
+public abstract class ArduinoSketch {
+    private static final String TAG = "arduinosketch";
+
+    volatile SketchScheduler.Task mTask = null; //Set while the sketch is added to a scheduler
+    Thread mRunner = null; //Last thread started for the sketch, guarded by its scheduler
+
+    /* Called once on the sketch's own thread when its scheduler starts */
+    public abstract void setup();
+
+    /* Called over and over after setup(), delay() and waitForPin() let other sketches run meanwhile */
+    public abstract void loop();
+
+    public int digitalRead(int pin) {
+        int global = map("digitalRead", pin);
+        return (global < 0) ? 0 : UsbIOService.digitalRead(global);
+    }
+
+    public void digitalWrite(int pin, int value) {
+        int global = map("digitalWrite", pin);
+        if(global >= 0 && owns("digitalWrite", global))
+            UsbIOService.digitalWrite(global, value);
+    }
+
+    public void pinMode(int pin, int mode) {
+        if(owns("pinMode", pin))
+            UsbIOService.pinMode(pin, mode);
+    }
+
+    public void analogWrite(int pin, int value) {
+        if(owns("analogWrite", pin))
+            UsbIOService.analogWrite(pin, value);
+    }
+
+    /*
+        Waits until digitalRead(pin) returns level, without holding a scheduler slot. Returns false if
+        timeoutMs passed first or the sketch is being stopped.
+    */
+    public boolean waitForPin(int pin, int level, long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        while(true) {
+            int seq = UsbIOService.changeSeq();
+            if(digitalRead(pin) == level)
+                return true;
+            if(!SketchScheduler.awaitChange(seq, deadline))
+                return false;
+        }
+    }
+
+    /* Global pin number of a pin as the sketch sees it, -1 if it is outside the sketch's virtual range */
+    private int map(String function, int pin) {
+        SketchScheduler.Task task = mTask;
+        if(task == null || pin < VPIN_BASE)
+            return pin;
+        if(pin - VPIN_BASE >= task.vpinCount) {
+            Log.e(TAG, function + ": virtual pin " + pin + " outside the sketch's range");
+            return -1;
+        }
+        return task.vpinFirst + pin - VPIN_BASE;
+    }
+
+    private boolean owns(String function, int pin) {
+        SketchScheduler.Task task = mTask;
+        if(task == null || pin < 0 || pin > MAX_FT_PIN_NUMBER || (task.pinMask & (1 << pin)) != 0)
+            return true;
+        Log.e(TAG, function + ": pin " + pin + " is not owned by " + task.getName());
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+package com.docvolt.usbcontrol;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.util.Log;
+
+/*
+    Streams whole buffers of pin states through the FT232R in synchronous bit-bang mode.
+    Every byte written to the bulk OUT endpoint is put on the output pins at the bit-bang clock,
+    and the input pins sampled for it come back on the bulk IN endpoint.
+*/
+class BitBangStream {
+    private static final String TAG = "bitbangstream";
+
+    // USB control constants
+    private static final int FTDI_DEVICE_OUT_REQTYPE = 0x40;
+    private static final int SIO_RESET_REQUEST = 0x00;
+    private static final int SIO_SET_BAUDRATE_REQUEST = 0x03;
+    private static final int SIO_SET_LATENCY_TIMER_REQUEST = 0x09;
+    private static final int SIO_SET_BITMODE_REQUEST = 0x0b;
+    private static final int SIO_RESET_PURGE_RX = 1;
+    private static final int SIO_RESET_PURGE_TX = 2;
+    private static final int BITMODE_SYNCBB = 0x04;
+
+    private static final int BASE_CLOCK = 3000000; //Baud rate generator clock of the FT232R
+    private static final int BITBANG_CLOCK_FACTOR = 16; //Bit-bang data is clocked at 16 times the baud rate
+    public static final int MAX_SAMPLE_RATE = BASE_CLOCK; //Divisor 16, the FT232R limit for bit-bang
+    public static final int MIN_SAMPLE_RATE = BASE_CLOCK * BITBANG_CLOCK_FACTOR / 16384 + 1; //Largest divisor
+    private static final int STREAM_LATENCY_MS = 1;
+    private static final int DEFAULT_LATENCY_MS = 16;
+    // States sent per transfer, half of the RX FIFO so sampled bytes are never dropped. Between two
+    // chunks the pins hold the last state until the next chunk arrives
+    static final int CHUNK = 128;
+    private static final int TIMEOUT_MS = 500;
+    // Sub-integer divisor encoding for eighths 0..7 (FTDI AN232B-05)
+    private static final int[] FRAC_CODE = {0, 3, 2, 4, 1, 5, 6, 7};
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbInterface mInterface;
+    private UsbEndpoint mEpIn;
+    private UsbEndpoint mEpOut;
+    private final byte[] mRxBuf;
+    private final byte[] mTxBuf = new byte[CHUNK]; //bulkTransfer() with an offset needs API 18
+    private final int mPacketSize;
+
+    BitBangStream(UsbDeviceConnection connection, UsbInterface usbInterface) {
+        mConnection = connection;
+        mInterface = usbInterface;
+        for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+            UsbEndpoint ep = usbInterface.getEndpoint(i);
+            if (ep.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK)
+                continue;
+            if (ep.getDirection() == UsbConstants.USB_DIR_IN)
+                mEpIn = ep;
+            else
+                mEpOut = ep;
+        }
+        mPacketSize = (mEpIn != null) ? mEpIn.getMaxPacketSize() : 64;
+        mRxBuf = new byte[mPacketSize * (CHUNK / (mPacketSize - 2) + 2)];
+        if (!connection.claimInterface(usbInterface, true))
+            Log.e(TAG, "Could not claim interface");
+    }
+
+    /*
+        Plays states[] on the pins in outputMask at sampleRateHz and returns one input sample per state.
+        A set bit drives the pin high. Afterwards the pins go back to the open collector mode of the
+        IO thread with restoreMask as direction mask. Returns null on a transfer error.
+    */
+    byte[] play(byte[] states, int outputMask, int sampleRateHz, int restoreMask) {
+        if (mEpIn == null || mEpOut == null) {
+            Log.e(TAG, "play: no bulk endpoints");
+            return null;
+        }
+        byte[] samples = new byte[states.length];
+        // Latch the first state before the outputs are enabled, so they do not glitch low first
+        byte[] first = {(states.length > 0) ? states[0] : 0};
+        boolean ok = control(SIO_RESET_REQUEST, SIO_RESET_PURGE_RX)
+                && control(SIO_RESET_REQUEST, SIO_RESET_PURGE_TX)
+                && control(SIO_SET_LATENCY_TIMER_REQUEST, STREAM_LATENCY_MS)
+                && setSampleRate(sampleRateHz)
+                && mConnection.bulkTransfer(mEpOut, first, 1, TIMEOUT_MS) == 1
+                && receive(first, 0, 1)
+                && control(SIO_SET_BITMODE_REQUEST, (BITMODE_SYNCBB << 8) | (outputMask & 0xFF));
+        for (int pos = 0; ok && pos < states.length; pos += CHUNK) {
+            int len = Math.min(CHUNK, states.length - pos);
+            System.arraycopy(states, pos, mTxBuf, 0, len);
+            ok = mConnection.bulkTransfer(mEpOut, mTxBuf, len, TIMEOUT_MS) == len
+                    && receive(samples, pos, len);
+        }
+        // Back to the open collector mode, then clear the data latch, which that mode expects low.
+        // Released pins stop driving first, so the last state does not glitch low on them
+        byte[] zero = {0};
+        boolean restored = control(SIO_SET_BITMODE_REQUEST, (BITMODE_SYNCBB << 8) | (restoreMask & 0xFF))
+                && mConnection.bulkTransfer(mEpOut, zero, 1, TIMEOUT_MS) == 1
+                && receive(zero, 0, 1)
+                && control(SIO_SET_LATENCY_TIMER_REQUEST, DEFAULT_LATENCY_MS);
+        if (!ok || !restored) {
+            Log.e(TAG, "play: transfer error");
+            return null;
+        }
+        return samples;
+    }
+
+    /* Collects len sampled bytes from bulk IN, skipping the two modem status bytes of every packet */
+    private boolean receive(byte[] dst, int off, int len) {
+        int got = 0;
+        while (got < len) {
+            int n = mConnection.bulkTransfer(mEpIn, mRxBuf, mRxBuf.length, TIMEOUT_MS);
+            if (n < 0)
+                return false;
+            for (int p = 0; p < n && got < len; p += mPacketSize) {
+                int data = Math.min(Math.min(mPacketSize, n - p) - 2, len - got);
+                if (data > 0) {
+                    System.arraycopy(mRxBuf, p + 2, dst, off + got, data);
+                    got += data;
+                }
+            }
+        }
+        return true;
+    }
+
+    /* Programs the baud rate generator so bit-bang bytes are clocked at sampleRateHz */
+    private boolean setSampleRate(int sampleRateHz) {
+        int rate = Math.max(MIN_SAMPLE_RATE, Math.min(MAX_SAMPLE_RATE, sampleRateHz));
+        if (rate != sampleRateHz)
+            Log.w(TAG, "setSampleRate: clamped to " + rate + " Hz");
+        int baud = rate / BITBANG_CLOCK_FACTOR;
+        int div8 = Math.min((BASE_CLOCK * 8 + baud / 2) / baud, 0x1FFFF); //Divisor in eighths, 14 bit integer part
+        int encoded;
+        if (div8 <= 8)
+            encoded = 0; //Divisor 1 (3 MBaud)
+        else if (div8 <= 12)
+            encoded = 1; //Divisor 1.5 (2 MBaud)
+        else
+            encoded = (div8 >> 3) | (FRAC_CODE[div8 & 7] << 14);
+        return mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_SET_BAUDRATE_REQUEST,
+                encoded & 0xFFFF, encoded >> 16, null, 0, TIMEOUT_MS) >= 0;
+    }
+
+    private boolean control(int request, int value) {
+        return mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, request, value,
+                mInterface.getId(), null, 0, TIMEOUT_MS) >= 0;
+    }
+}
@@ -0,0 +1,472 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.INPUT;
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+import static com.docvolt.usbcontrol.UsbIOService.OUTPUT;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/*
+    Bit-banged SPI, I2C and 1-Wire masters and Arduino shiftOut()/shiftIn() on the pins of one adapter.
+    A whole transaction is encoded into a buffer of pin states and played with playWaveform(), so it
+    costs a few bulk transfers instead of a USB round trip per clock edge. Input bits are decoded from
+    the samples that come back. The inputs are sampled right before a state is put out, so sample i
+    shows the pins while state i-1 was applied.
+    I2C and 1-Wire need open drain lines, which cannot be switched per bit while streaming. Their data
+    line uses two pins instead: an output that pulls the line low through a diode (cathode at the pin)
+    and an input connected to the line, which needs a pull-up resistor.
+*/
+public final class BusMaster {
+    private static final String TAG = "busmaster";
+
+    public static final int LSBFIRST = 0;
+    public static final int MSBFIRST = 1;
+    // Buses for stats()
+    public static final int BUS_SHIFT = 0;
+    public static final int BUS_SPI = 1;
+    public static final int BUS_I2C = 2;
+    public static final int BUS_ONE_WIRE = 3;
+
+    private static final int SHIFT_STATES = 3; //States per bit of each bus
+    private static final int SPI_STATES = 2;
+    private static final int I2C_STATES = 4;
+    // 1-Wire runs at 2 us per state. Slots never cross a chunk, a pause in the middle would stretch them
+    private static final int ONE_WIRE_RATE = 500000;
+    private static final int OW_RESET_LOW = 240; //480 us
+    private static final int OW_PRESENCE = 35; //Presence pulse sampled 70 us after the reset
+    private static final int OW_RESET_HIGH = 205;
+    private static final int OW_SLOT = 32;
+    private static final int OW_LOW_0 = 30;
+    private static final int OW_LOW_1 = 3; //Also the start of a read slot
+    private static final int OW_SAMPLE = 7; //Read slots are sampled 14 us after the start
+
+    public static final class Stats {
+        public final long transactions;
+        public final long bytes;
+        public final int clockHz; //Bus clock achieved by the last transaction, USB pauses included
+        public final float bytesPerSecond; //Payload rate of the last transaction
+
+        Stats(long transactions, long bytes, int clockHz, float bytesPerSecond) {
+            this.transactions = transactions;
+            this.bytes = bytes;
+            this.clockHz = clockHz;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private final PinBank mBank;
+
+    // Waveform being encoded
+    private byte[] mStates = new byte[BitBangStream.CHUNK];
+    private int mLength;
+    private int mLevels; //Current state, a set bit drives the pin high
+    private int[] mSamplePoints = new int[64]; //Sample indices of the input bits
+    private int mSampleCount;
+
+    private int mShiftClock = 100000;
+    private int mSpiSck = -1, mSpiMosi, mSpiMiso, mSpiCs, mSpiMode, mSpiClock;
+    private int mI2cScl = -1, mI2cSdaOut, mI2cSdaIn, mI2cClock;
+    private int mOwOut = -1, mOwIn;
+
+    private final long[] mTransactions = new long[4];
+    private final long[] mBytes = new long[4];
+    private final int[] mClockHz = new int[4];
+    private final float[] mBytesPerSecond = new float[4];
+
+    BusMaster(PinBank bank) {
+        mBank = bank;
+    }
+
+    /* Clock of shiftOut() and shiftIn(), 100 kHz by default */
+    public synchronized void setShiftClock(int hz) {
+        mShiftClock = hz;
+    }
+
+    /* Like Arduino shiftOut(): clocks out the 8 bits of value on dataPin, both pins must be outputs */
+    public synchronized void shiftOut(int dataPin, int clockPin, int bitOrder, int value) {
+        if(!isOutput("shiftOut", dataPin) || !isOutput("shiftOut", clockPin))
+            return;
+        begin();
+        set(clockPin, 0);
+        for(int i = 0; i < 8; i++) {
+            set(dataPin, bit(value, i, bitOrder));
+            emit();
+            set(clockPin, 1);
+            emit();
+            set(clockPin, 0); //Data only changes after the clock is low again
+            emit();
+        }
+        play(BUS_SHIFT, mShiftClock * SHIFT_STATES, 8, 1);
+    }
+
+    /* Like Arduino shiftIn(): reads 8 bits from dataPin, each after a rising edge on clockPin */
+    public synchronized int shiftIn(int dataPin, int clockPin, int bitOrder) {
+        if(!validPin("shiftIn", dataPin) || !isOutput("shiftIn", clockPin))
+            return 0;
+        begin();
+        for(int i = 0; i < 8; i++) {
+            set(clockPin, 1);
+            emit();
+            set(clockPin, 0);
+            mark(emit());
+        }
+        byte[] samples = play(BUS_SHIFT, mShiftClock * 2, 8, 1);
+        return (samples == null) ? 0 : decodeByte(samples, 0, dataPin, bitOrder);
+    }
+
+    /*
+        Sets up an SPI master. mode is the SPI mode 0 to 3, cs may be -1 if the device has no chip select.
+        The clock is at most BitBangStream.MAX_SAMPLE_RATE / 2.
+    */
+    public synchronized void spiBegin(int sck, int mosi, int miso, int cs, int mode, int clockHz) {
+        if(!validPin("spiBegin", sck) || !validPin("spiBegin", mosi) || !validPin("spiBegin", miso)
+                || (cs >= 0 && !validPin("spiBegin", cs)))
+            return;
+        mSpiSck = sck;
+        mSpiMosi = mosi;
+        mSpiMiso = miso;
+        mSpiCs = cs;
+        mSpiMode = mode & 3;
+        mSpiClock = clockHz;
+        mBank.pinMode(miso, INPUT);
+        mBank.pinMode(mosi, OUTPUT);
+        mBank.pinMode(sck, OUTPUT);
+        mBank.digitalWrite(sck, mSpiMode >> 1); //Idle level is CPOL
+        if(cs >= 0) {
+            mBank.pinMode(cs, OUTPUT);
+            mBank.digitalWrite(cs, 1);
+        }
+    }
+
+    /* Sends tx MSB first with chip select asserted and returns the bytes received meanwhile */
+    public synchronized byte[] spiTransfer(byte[] tx) {
+        if(mSpiSck < 0) {
+            Log.e(TAG, "spiTransfer: call spiBegin() first");
+            return null;
+        }
+        int idle = mSpiMode >> 1;
+        boolean cpha = (mSpiMode & 1) != 0;
+        begin();
+        set(mSpiSck, idle);
+        if(mSpiCs >= 0)
+            set(mSpiCs, 0);
+        emit();
+        for(int i = 0; i < tx.length * 8; i++) {
+            //CPHA 0 samples on the leading edge, CPHA 1 on the trailing one. Either way the input is
+            //read in the second state, while the first one is applied
+            set(mSpiMosi, bit(tx[i >> 3], i & 7, MSBFIRST));
+            set(mSpiSck, cpha ? idle ^ 1 : idle);
+            emit();
+            set(mSpiSck, cpha ? idle : idle ^ 1);
+            mark(emit());
+        }
+        set(mSpiSck, idle);
+        emit();
+        if(mSpiCs >= 0)
+            set(mSpiCs, 1);
+        emit();
+        byte[] samples = play(BUS_SPI, mSpiClock * SPI_STATES, tx.length * 8, tx.length);
+        if(samples == null)
+            return null;
+        byte[] rx = new byte[tx.length];
+        for(int i = 0; i < rx.length; i++)
+            rx[i] = (byte) decodeByte(samples, i * 8, mSpiMiso, MSBFIRST);
+        return rx;
+    }
+
+    /* Sets up an I2C master, see the class comment for wiring SDA. Clock stretching is not supported */
+    public synchronized void i2cBegin(int scl, int sdaOut, int sdaIn, int clockHz) {
+        if(!validPin("i2cBegin", scl) || !validPin("i2cBegin", sdaOut) || !validPin("i2cBegin", sdaIn))
+            return;
+        mI2cScl = scl;
+        mI2cSdaOut = sdaOut;
+        mI2cSdaIn = sdaIn;
+        mI2cClock = clockHz;
+        mBank.pinMode(sdaIn, INPUT);
+        mBank.pinMode(sdaOut, OUTPUT);
+        mBank.pinMode(scl, OUTPUT);
+        mBank.digitalWrite(sdaOut, 1);
+        mBank.digitalWrite(scl, 1);
+    }
+
+    /* Writes data to the device at the 7 bit address addr. Returns false if a byte was not acknowledged */
+    public synchronized boolean i2cWrite(int addr, byte[] data) {
+        if(mI2cScl < 0) {
+            Log.e(TAG, "i2cWrite: call i2cBegin() first");
+            return false;
+        }
+        begin();
+        i2cStart();
+        i2cByte(addr << 1);
+        for(byte b : data)
+            i2cByte(b);
+        i2cStop();
+        byte[] samples = play(BUS_I2C, mI2cClock * I2C_STATES, (data.length + 1) * 9, data.length);
+        if(samples == null)
+            return false;
+        for(int i = 0; i <= data.length; i++)
+            if(sample(samples, i, mI2cSdaIn) != 0) {
+                Log.d(TAG, "i2cWrite: no ACK for byte " + i);
+                return false;
+            }
+        return true;
+    }
+
+    /* Reads count bytes from the device at the 7 bit address addr, or returns null if it did not answer */
+    public synchronized byte[] i2cRead(int addr, int count) {
+        if(mI2cScl < 0) {
+            Log.e(TAG, "i2cRead: call i2cBegin() first");
+            return null;
+        }
+        begin();
+        i2cStart();
+        i2cByte((addr << 1) | 1);
+        for(int i = 0; i < count; i++) {
+            for(int b = 0; b < 8; b++)
+                mark(i2cBit(1));
+            i2cBit((i == count - 1) ? 1 : 0); //ACK all but the last byte
+        }
+        i2cStop();
+        byte[] samples = play(BUS_I2C, mI2cClock * I2C_STATES, (count + 1) * 9, count);
+        if(samples == null)
+            return null;
+        if(sample(samples, 0, mI2cSdaIn) != 0) {
+            Log.d(TAG, "i2cRead: no ACK from address " + addr);
+            return null;
+        }
+        byte[] rx = new byte[count];
+        for(int i = 0; i < count; i++)
+            rx[i] = (byte) decodeByte(samples, 1 + i * 8, mI2cSdaIn, MSBFIRST);
+        return rx;
+    }
+
+    /* Sets up a 1-Wire master, see the class comment for wiring the data line */
+    public synchronized void oneWireBegin(int out, int in) {
+        if(!validPin("oneWireBegin", out) || !validPin("oneWireBegin", in))
+            return;
+        mOwOut = out;
+        mOwIn = in;
+        mBank.pinMode(in, INPUT);
+        mBank.pinMode(out, OUTPUT);
+        mBank.digitalWrite(out, 1);
+    }
+
+    /* Sends a reset pulse, returns true if a device answered with a presence pulse */
+    public synchronized boolean oneWireReset() {
+        return oneWireTransfer(null, 0) != null;
+    }
+
+    /* Writes data LSB first without a reset. Returns false on a transfer error */
+    public synchronized boolean oneWireWrite(byte[] data) {
+        if(mOwOut < 0) {
+            Log.e(TAG, "oneWireWrite: call oneWireBegin() first");
+            return false;
+        }
+        begin();
+        set(mOwOut, 1);
+        for(byte b : data)
+            for(int i = 0; i < 8; i++)
+                oneWireBit((b >> i) & 1);
+        emit();
+        return play(BUS_ONE_WIRE, ONE_WIRE_RATE, data.length * 8, data.length) != null;
+    }
+
+    /* Reads count bytes without a reset, or returns null on a transfer error */
+    public synchronized byte[] oneWireRead(int count) {
+        if(mOwOut < 0) {
+            Log.e(TAG, "oneWireRead: call oneWireBegin() first");
+            return null;
+        }
+        begin();
+        set(mOwOut, 1);
+        for(int i = 0; i < count * 8; i++)
+            mark(oneWireBit(1));
+        emit();
+        byte[] samples = play(BUS_ONE_WIRE, ONE_WIRE_RATE, count * 8, count);
+        return (samples == null) ? null : decodeBytes(samples, 0, count, mOwIn);
+    }
+
+    /*
+        Reset, write tx and read rxCount bytes in one waveform, like a DS18B20 command. Returns the
+        bytes read, or null if no device answered the reset or the transfer failed.
+    */
+    public synchronized byte[] oneWireTransfer(byte[] tx, int rxCount) {
+        if(mOwOut < 0) {
+            Log.e(TAG, "oneWireTransfer: call oneWireBegin() first");
+            return null;
+        }
+        int txLength = (tx == null) ? 0 : tx.length;
+        begin();
+        set(mOwOut, 1);
+        emit();
+        //The reset pulse ends on a chunk boundary, so a pause can only stretch it, never the presence window
+        set(mOwOut, 0);
+        for(int i = 0; i < OW_RESET_LOW || mLength % BitBangStream.CHUNK != 0; i++)
+            emit();
+        set(mOwOut, 1);
+        for(int i = 0; i < OW_PRESENCE; i++)
+            emit();
+        mark(mLength);
+        for(int i = OW_PRESENCE; i < OW_RESET_HIGH; i++)
+            emit();
+        for(int i = 0; i < txLength * 8; i++)
+            oneWireBit((tx[i >> 3] >> (i & 7)) & 1);
+        for(int i = 0; i < rxCount * 8; i++)
+            mark(oneWireBit(1));
+        emit();
+        byte[] samples = play(BUS_ONE_WIRE, ONE_WIRE_RATE, (txLength + rxCount) * 8, txLength + rxCount);
+        if(samples == null)
+            return null;
+        if(sample(samples, 0, mOwIn) != 0) {
+            Log.d(TAG, "oneWireTransfer: no presence pulse");
+            return null;
+        }
+        return decodeBytes(samples, 1, rxCount, mOwIn);
+    }
+
+    /* Transactions, payload bytes and the throughput of the last transaction of a bus */
+    public synchronized Stats stats(int bus) {
+        if(bus < BUS_SHIFT || bus > BUS_ONE_WIRE)
+            return null;
+        return new Stats(mTransactions[bus], mBytes[bus], mClockHz[bus], mBytesPerSecond[bus]);
+    }
+
+    private void i2cStart() {
+        set(mI2cSdaOut, 1);
+        set(mI2cScl, 0);
+        emit(); //SDA only changes while SCL is low, so this cannot look like a STOP
+        set(mI2cScl, 1);
+        emit();
+        set(mI2cSdaOut, 0);
+        emit();
+        set(mI2cScl, 0);
+        emit();
+    }
+
+    private void i2cStop() {
+        set(mI2cSdaOut, 0);
+        emit();
+        set(mI2cScl, 1);
+        emit();
+        set(mI2cSdaOut, 1);
+        emit();
+    }
+
+    /* Writes value MSB first and marks the ACK bit */
+    private void i2cByte(int value) {
+        for(int i = 0; i < 8; i++)
+            i2cBit(bit(value, i, MSBFIRST));
+        mark(i2cBit(1));
+    }
+
+    /* One clock with SDA at level, returns the index where SDA is sampled */
+    private int i2cBit(int level) {
+        set(mI2cSdaOut, level);
+        emit();
+        set(mI2cScl, 1);
+        emit();
+        int at = emit();
+        set(mI2cScl, 0);
+        emit();
+        return at;
+    }
+
+    /* One 1-Wire slot, returns the index where a read slot is sampled. A read slot is a write of 1 */
+    private int oneWireBit(int level) {
+        if(mLength % BitBangStream.CHUNK + OW_SLOT > BitBangStream.CHUNK) {
+            set(mOwOut, 1);
+            while(mLength % BitBangStream.CHUNK != 0)
+                emit();
+        }
+        int start = mLength;
+        int low = (level == 0) ? OW_LOW_0 : OW_LOW_1;
+        set(mOwOut, 0);
+        for(int i = 0; i < low; i++)
+            emit();
+        set(mOwOut, 1);
+        for(int i = low; i < OW_SLOT; i++)
+            emit();
+        return start + OW_SAMPLE;
+    }
+
+    /* Starts a new waveform from the current output levels */
+    private void begin() {
+        mLength = 0;
+        mSampleCount = 0;
+        mLevels = ~mBank.pins.get() & 0xFF;
+    }
+
+    private void set(int pin, int level) {
+        mLevels = (level == 0) ? mLevels & ~(1 << pin) : mLevels | (1 << pin);
+    }
+
+    /* Appends the current state, returns its index */
+    private int emit() {
+        if(mLength == mStates.length)
+            mStates = Arrays.copyOf(mStates, mLength * 2);
+        mStates[mLength] = (byte) mLevels;
+        return mLength++;
+    }
+
+    private void mark(int index) {
+        if(mSampleCount == mSamplePoints.length)
+            mSamplePoints = Arrays.copyOf(mSamplePoints, mSampleCount * 2);
+        mSamplePoints[mSampleCount++] = index;
+    }
+
+    /* Level of pin at the n-th marked sample point */
+    private int sample(byte[] samples, int n, int pin) {
+        return (samples[mSamplePoints[n]] >> pin) & 1;
+    }
+
+    private int decodeByte(byte[] samples, int first, int pin, int bitOrder) {
+        int value = 0;
+        for(int i = 0; i < 8; i++)
+            value |= sample(samples, first + i, pin) << ((bitOrder == MSBFIRST) ? 7 - i : i);
+        return value;
+    }
+
+    private byte[] decodeBytes(byte[] samples, int first, int count, int pin) {
+        byte[] rx = new byte[count];
+        for(int i = 0; i < count; i++)
+            rx[i] = (byte) decodeByte(samples, first + i * 8, pin, LSBFIRST);
+        return rx;
+    }
+
+    private byte[] play(int bus, int sampleRateHz, int clocks, int bytes) {
+        long start = System.nanoTime();
+        byte[] samples = mBank.playWaveform(Arrays.copyOf(mStates, mLength), sampleRateHz);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        if(samples == null)
+            return null;
+        mTransactions[bus]++;
+        mBytes[bus] += bytes;
+        mClockHz[bus] = (int) (clocks * 1000000000L / elapsed);
+        mBytesPerSecond[bus] = bytes * 1e9f / elapsed;
+        return samples;
+    }
+
+    private static int bit(int value, int i, int bitOrder) {
+        return (value >> ((bitOrder == MSBFIRST) ? 7 - i : i)) & 1;
+    }
+
+    private static boolean validPin(String function, int pin) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, function + ": pin out of range");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isOutput(String function, int pin) {
+        if(!validPin(function, pin))
+            return false;
+        if(((1 << pin) & mBank.mode) == 0) {
+            Log.e(TAG, function + ": pin " + pin + " is no output");
+            return false;
+        }
+        return true;
+    }
+}
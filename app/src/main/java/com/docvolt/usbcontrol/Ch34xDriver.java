@@ -0,0 +1,89 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/* CH340/CH341, only the modem control lines are GPIOs: DTR and RTS are outputs, CTS, DSR, RI and DCD inputs */
+class Ch34xDriver implements PinDriver {
+    private static final int OUT_REQTYPE = 0x40;
+    private static final int IN_REQTYPE = 0xC0;
+    private static final int REQ_READ_REG = 0x95;
+    private static final int REQ_SERIAL_INIT = 0xA1;
+    private static final int REQ_MODEM_CTRL = 0xA4;
+    private static final int REG_MODEM_STATUS = 0x0706;
+    // Modem control bits, active low
+    private static final int BIT_DTR = 0x20;
+    private static final int BIT_RTS = 0x40;
+    // Modem status bits, a set bit means the line is high
+    private static final int BIT_CTS = 0x01;
+    private static final int BIT_DSR = 0x02;
+    private static final int BIT_RI = 0x04;
+    private static final int BIT_DCD = 0x08;
+    private static final int TIMEOUT_MS = 100;
+
+    private UsbDeviceConnection mConnection;
+    private UsbInterface mInterface;
+    private int mLow = 0;
+    private final byte[] mStatus = new byte[2];
+
+    @Override
+    public boolean open(UsbDeviceConnection connection, UsbDevice device) {
+        mConnection = connection;
+        mInterface = device.getInterface(0);
+        return connection.claimInterface(mInterface, true)
+                && connection.controlTransfer(OUT_REQTYPE, REQ_SERIAL_INIT, 0, 0, null, 0, TIMEOUT_MS) >= 0;
+    }
+
+    @Override
+    public int pinMask() {
+        return (1 << PIN_DTR) | (1 << PIN_RTS) | (1 << PIN_CTS) | (1 << PIN_DSR) | (1 << PIN_RI) | (1 << PIN_DCD);
+    }
+
+    /* An asserted line is low */
+    @Override
+    public boolean write(int low) {
+        int ctrl = 0;
+        if((low & (1 << PIN_DTR)) != 0)
+            ctrl |= BIT_DTR;
+        if((low & (1 << PIN_RTS)) != 0)
+            ctrl |= BIT_RTS;
+        if(mConnection.controlTransfer(OUT_REQTYPE, REQ_MODEM_CTRL, ~ctrl & 0xFF, 0, null, 0, TIMEOUT_MS) < 0)
+            return false;
+        mLow = low;
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if(mConnection.controlTransfer(IN_REQTYPE, REQ_READ_REG, REG_MODEM_STATUS, 0, mStatus, 2, TIMEOUT_MS) < 0)
+            return -1;
+        int levels = 0xFF & ~mLow; //Outputs read back as written
+        if((mStatus[0] & BIT_CTS) == 0)
+            levels &= ~(1 << PIN_CTS);
+        if((mStatus[0] & BIT_DSR) == 0)
+            levels &= ~(1 << PIN_DSR);
+        if((mStatus[0] & BIT_RI) == 0)
+            levels &= ~(1 << PIN_RI);
+        if((mStatus[0] & BIT_DCD) == 0)
+            levels &= ~(1 << PIN_DCD);
+        return levels;
+    }
+
+    @Override
+    public BitBangStream bitBang() {
+        return null;
+    }
+
+    @Override
+    public PinPipeline pipeline() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        mConnection.releaseInterface(mInterface);
+    }
+}
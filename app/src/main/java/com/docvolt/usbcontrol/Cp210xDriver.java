@@ -0,0 +1,89 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/* CP210x, only the modem control lines are GPIOs: DTR and RTS are outputs, CTS, DSR, RI and DCD inputs */
+class Cp210xDriver implements PinDriver {
+    private static final int OUT_REQTYPE = 0x41;
+    private static final int IN_REQTYPE = 0xC1;
+    private static final int REQ_IFC_ENABLE = 0x00;
+    private static final int REQ_SET_MHS = 0x07;
+    private static final int REQ_GET_MDMSTS = 0x08;
+    private static final int MHS_WRITE_DTR = 0x0100;
+    private static final int MHS_WRITE_RTS = 0x0200;
+    // Modem bits, a set bit means the line is asserted (low)
+    private static final int BIT_DTR = 0x01;
+    private static final int BIT_RTS = 0x02;
+    private static final int BIT_CTS = 0x10;
+    private static final int BIT_DSR = 0x20;
+    private static final int BIT_RI = 0x40;
+    private static final int BIT_DCD = 0x80;
+    private static final int TIMEOUT_MS = 100;
+
+    private UsbDeviceConnection mConnection;
+    private UsbInterface mInterface;
+    private int mLow = 0;
+    private final byte[] mStatus = new byte[1];
+
+    @Override
+    public boolean open(UsbDeviceConnection connection, UsbDevice device) {
+        mConnection = connection;
+        mInterface = device.getInterface(0);
+        return connection.claimInterface(mInterface, true)
+                && connection.controlTransfer(OUT_REQTYPE, REQ_IFC_ENABLE, 1, mInterface.getId(), null, 0, TIMEOUT_MS) >= 0;
+    }
+
+    @Override
+    public int pinMask() {
+        return (1 << PIN_DTR) | (1 << PIN_RTS) | (1 << PIN_CTS) | (1 << PIN_DSR) | (1 << PIN_RI) | (1 << PIN_DCD);
+    }
+
+    @Override
+    public boolean write(int low) {
+        int mhs = MHS_WRITE_DTR | MHS_WRITE_RTS;
+        if((low & (1 << PIN_DTR)) != 0)
+            mhs |= BIT_DTR;
+        if((low & (1 << PIN_RTS)) != 0)
+            mhs |= BIT_RTS;
+        if(mConnection.controlTransfer(OUT_REQTYPE, REQ_SET_MHS, mhs, mInterface.getId(), null, 0, TIMEOUT_MS) < 0)
+            return false;
+        mLow = low;
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if(mConnection.controlTransfer(IN_REQTYPE, REQ_GET_MDMSTS, 0, mInterface.getId(), mStatus, 1, TIMEOUT_MS) < 0)
+            return -1;
+        int levels = 0xFF & ~mLow; //Outputs read back as written
+        if((mStatus[0] & BIT_CTS) != 0)
+            levels &= ~(1 << PIN_CTS);
+        if((mStatus[0] & BIT_DSR) != 0)
+            levels &= ~(1 << PIN_DSR);
+        if((mStatus[0] & BIT_RI) != 0)
+            levels &= ~(1 << PIN_RI);
+        if((mStatus[0] & BIT_DCD) != 0)
+            levels &= ~(1 << PIN_DCD);
+        return levels;
+    }
+
+    @Override
+    public BitBangStream bitBang() {
+        return null;
+    }
+
+    @Override
+    public PinPipeline pipeline() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        mConnection.controlTransfer(OUT_REQTYPE, REQ_IFC_ENABLE, 0, mInterface.getId(), null, 0, TIMEOUT_MS);
+        mConnection.releaseInterface(mInterface);
+    }
+}
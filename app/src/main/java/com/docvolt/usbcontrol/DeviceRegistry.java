@@ -0,0 +1,78 @@
+package com.docvolt.usbcontrol;
+
+import android.hardware.usb.UsbDevice;
+
+/* Supported USB adapters and their drivers. Add a line to SUPPORTED to support another chip */
+final class DeviceRegistry {
+    interface DriverFactory {
+        PinDriver create();
+    }
+
+    private static final class Entry {
+        final int vendorId;
+        final int productId;
+        final String name;
+        final DriverFactory factory;
+
+        Entry(int vendorId, int productId, String name, DriverFactory factory) {
+            this.vendorId = vendorId;
+            this.productId = productId;
+            this.name = name;
+            this.factory = factory;
+        }
+    }
+
+    private static final DriverFactory FTDI = new DriverFactory() {
+        @Override
+        public PinDriver create() {
+            return new FtdiDriver();
+        }
+    };
+    private static final DriverFactory CH34X = new DriverFactory() {
+        @Override
+        public PinDriver create() {
+            return new Ch34xDriver();
+        }
+    };
+    private static final DriverFactory CP210X = new DriverFactory() {
+        @Override
+        public PinDriver create() {
+            return new Cp210xDriver();
+        }
+    };
+
+    private static final Entry[] SUPPORTED = {
+            new Entry(0x0403, 0x6001, "FT232R", FTDI),
+            new Entry(0x1a86, 0x7523, "CH340", CH34X),
+            new Entry(0x1a86, 0x5523, "CH341", CH34X),
+            new Entry(0x10c4, 0xea60, "CP2102", CP210X),
+            new Entry(0x10c4, 0xea70, "CP2105", CP210X),
+            new Entry(0x10c4, 0xea71, "CP2108", CP210X),
+    };
+
+    private DeviceRegistry() {
+    }
+
+    private static Entry find(UsbDevice device) {
+        for (Entry entry : SUPPORTED)
+            if (entry.vendorId == device.getVendorId() && entry.productId == device.getProductId())
+                return entry;
+        return null;
+    }
+
+    static boolean isSupported(UsbDevice device) {
+        return find(device) != null;
+    }
+
+    /* Returns the chip name, or null if the device is not supported */
+    static String nameOf(UsbDevice device) {
+        Entry entry = find(device);
+        return (entry == null) ? null : entry.name;
+    }
+
+    /* Returns a new driver for the device, or null if it is not supported */
+    static PinDriver createDriver(UsbDevice device) {
+        Entry entry = find(device);
+        return (entry == null) ? null : entry.factory.create();
+    }
+}
@@ -0,0 +1,135 @@
+package com.docvolt.usbcontrol;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Preallocated ring buffer of timestamped input edges. The IO thread is the only writer, readers
+    follow it with their own Cursor and never block it. A reader that falls more than the capacity
+    behind loses the oldest edges, Cursor.lost counts them.
+    An edge is encoded as (changed mask << 8) | levels, where bit n of levels is the level of pin n
+    after the edge (1 = high).
+*/
+public final class EdgeRing {
+    private static final int WAITER_SLOTS = 4;
+    private static final long MAX_PARK_NS = 1000000; //Bounds the wait of readers that found no free waiter slot
+
+    // Slots are read and written in order with mHead, a reader checks it after reading a slot
+    private final AtomicLongArray mTimes;
+    private final AtomicIntegerArray mEdges;
+    private final int mMask;
+    private volatile long mHead = 0; //Sequence number of the next edge
+    private volatile int mLevels;
+    private final AtomicReferenceArray<Thread> mWaiters = new AtomicReferenceArray<>(WAITER_SLOTS);
+    private final AtomicLongArray mRising = new AtomicLongArray(8);
+    private final AtomicLongArray mFalling = new AtomicLongArray(8);
+
+    /* capacity is rounded up to a power of two */
+    EdgeRing(int capacity, int levels) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mTimes = new AtomicLongArray(size);
+        mEdges = new AtomicIntegerArray(size);
+        mMask = size - 1;
+        mLevels = levels;
+    }
+
+    /* Producer side, only called from the IO thread */
+    void record(long time, int changed, int levels) {
+        long head = mHead;
+        int i = (int) head & mMask;
+        mTimes.set(i, time);
+        mEdges.set(i, (changed << 8) | levels);
+        mLevels = levels;
+        mHead = head + 1;
+        for (int bits = changed; bits != 0; bits &= bits - 1) {
+            int pin = Integer.numberOfTrailingZeros(bits);
+            AtomicLongArray count = ((levels & (1 << pin)) != 0) ? mRising : mFalling;
+            count.lazySet(pin, count.get(pin) + 1);
+        }
+        for (int w = 0; w < WAITER_SLOTS; w++) {
+            Thread waiter = mWaiters.get(w);
+            if (waiter != null)
+                LockSupport.unpark(waiter);
+        }
+    }
+
+    /* Levels after the last recorded edge */
+    public int levels() {
+        return mLevels;
+    }
+
+    public long risingEdges(int pin) {
+        return mRising.get(pin);
+    }
+
+    public long fallingEdges(int pin) {
+        return mFalling.get(pin);
+    }
+
+    /* Returns a cursor that sees the edges recorded from now on */
+    public Cursor cursor() {
+        Cursor cursor = new Cursor();
+        cursor.next = mHead;
+        return cursor;
+    }
+
+    /* Waits until an edge after the cursor was recorded or the deadline (System.nanoTime()) passed */
+    void await(Cursor cursor, long deadline) {
+        Thread self = Thread.currentThread();
+        int slot = 0;
+        while (slot < WAITER_SLOTS && !mWaiters.compareAndSet(slot, null, self))
+            slot++;
+        long wait = deadline - System.nanoTime();
+        if (mHead == cursor.next && wait > 0)
+            LockSupport.parkNanos((slot < WAITER_SLOTS) ? wait : Math.min(wait, MAX_PARK_NS));
+        if (slot < WAITER_SLOTS)
+            mWaiters.set(slot, null);
+    }
+
+    public final class Cursor {
+        private long next;
+        public long lost = 0;
+        // Edge read by the last successful poll()
+        public long time;
+        public int edge;
+
+        /* Skips all pending edges */
+        public void reset() {
+            next = mHead;
+            lost = 0;
+        }
+
+        /* Reads the next edge into time and edge. Returns false if there is none */
+        public boolean poll() {
+            while (true) {
+                long head = mHead;
+                if (next == head)
+                    return false;
+                if (head - next > mMask) { //The oldest slot may be rewritten any moment
+                    lost += head - next - mMask;
+                    next = head - mMask;
+                }
+                int i = (int) next & mMask;
+                time = mTimes.get(i);
+                edge = mEdges.get(i);
+                if (mHead - next <= mMask) { //Not overwritten while reading
+                    next++;
+                    return true;
+                }
+            }
+        }
+
+        /* Copies up to times.length pending edges into times[] and edges[], returns the number copied */
+        public int drain(long[] times, int[] edges) {
+            int n = 0;
+            while (n < times.length && n < edges.length && poll()) {
+                times[n] = time;
+                edges[n] = edge;
+                n++;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.docvolt.usbcontrol;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/* FT232R in bit-bang mode, all eight data lines are GPIOs */
+class FtdiDriver implements PinDriver {
+    // USB control constants
+    private static final int FTDI_DEVICE_OUT_REQTYPE = 0x40;
+    private static final int FTDI_DEVICE_IN_REQTYPE = 0xC0;
+    private static final int SIO_SET_BITMODE_REQUEST = 0x0b;
+    private static final int SIO_READ_PINS_REQUEST = 0x0c;
+    private static final int BITMODE_SYNCBB = 0x04; //8-Bit control register for output values
+    private static final int TIMEOUT_MS = 100; //A hung adapter fails the transfer instead of blocking the IO thread
+
+    private UsbDeviceConnection mConnection;
+    private UsbInterface mInterface;
+    private BitBangStream mBitBang;
+    private FtdiPipeline mPipeline;
+    private final byte[] rdvals = {0};
+
+    @Override
+    public boolean open(UsbDeviceConnection connection, UsbDevice device) {
+        mConnection = connection;
+        mInterface = device.getInterface(0);
+        mBitBang = new BitBangStream(connection, mInterface);
+        mPipeline = FtdiPipeline.create(connection, mInterface, this);
+        return true;
+    }
+
+    @Override
+    public int pinMask() {
+        return 0xFF;
+    }
+
+    /* The data latch stays low, so the direction mask selects the pins that are pulled low */
+    @Override
+    public boolean write(int low) {
+        int bang_val = (BITMODE_SYNCBB << 8) + (low & 0xFF);
+        return mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_SET_BITMODE_REQUEST, bang_val, mInterface.getId(), null, 0, TIMEOUT_MS) != -1;
+    }
+
+    @Override
+    public int read() {
+        if(mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE, SIO_READ_PINS_REQUEST, 0, mInterface.getId(), rdvals, 1, TIMEOUT_MS) == -1)
+            return -1;
+        return rdvals[0] & 0xFF;
+    }
+
+    @Override
+    public BitBangStream bitBang() {
+        return mBitBang;
+    }
+
+    @Override
+    public PinPipeline pipeline() {
+        return mPipeline;
+    }
+
+    @Override
+    public void close() {
+        if(mPipeline != null)
+            mPipeline.stop();
+        mConnection.releaseInterface(mInterface);
+    }
+}
@@ -0,0 +1,254 @@
+package com.docvolt.usbcontrol;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+/*
+    Pipelined input polling of the FT232R with queued UsbRequests. The IO thread keeps the chip in
+    synchronous bit-bang mode, where every byte written to bulk OUT is latched and samples the pins
+    once. The byte is always 0, the open collector mode keeps the data latch low. The samples come
+    back on bulk IN behind the two modem status bytes of every packet.
+    At most depth polls are written and not yet read back, so the FIFO never holds stale samples.
+    The chip sends a short packet when its latency timer runs out, the timer is set to 1 ms while
+    the pipeline runs instead of the default 16 ms.
+    Needs requestWait() with a timeout, which came with API 26.
+*/
+@TargetApi(Build.VERSION_CODES.O)
+final class FtdiPipeline implements PinPipeline {
+    private static final String TAG = "ftdipipeline";
+
+    // USB control constants
+    private static final int FTDI_DEVICE_OUT_REQTYPE = 0x40;
+    private static final int SIO_RESET_REQUEST = 0x00;
+    private static final int SIO_SET_LATENCY_TIMER_REQUEST = 0x09;
+    private static final int SIO_RESET_PURGE_RX = 1;
+    private static final int SIO_RESET_PURGE_TX = 2;
+    private static final int PIPELINE_LATENCY_MS = 1;
+    private static final int DEFAULT_LATENCY_MS = 16;
+    private static final int CONTROL_TIMEOUT_MS = 100;
+    static final int MAX_DEPTH = 8;
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbInterface mInterface;
+    private final UsbEndpoint mEpIn;
+    private final UsbEndpoint mEpOut;
+    private final PinDriver mDriver; //Direct reads after a timeout
+    private final int mPacketSize;
+
+    private UsbRequest[] mPolls; //Bulk OUT, one byte each
+    private UsbRequest[] mReceives; //Bulk IN, one packet each
+    private final UsbRequest[] mIdlePolls = new UsbRequest[MAX_DEPTH];
+    private int mIdleCount = 0;
+    private int mDepth = 0;
+    private int mSamplesPending = 0; //Polls written whose sample did not come back yet
+    private volatile int mInFlight = 0;
+    private volatile long mTimeouts = 0;
+
+    private FtdiPipeline(UsbDeviceConnection connection, UsbInterface usbInterface, UsbEndpoint in, UsbEndpoint out, PinDriver driver) {
+        mConnection = connection;
+        mInterface = usbInterface;
+        mEpIn = in;
+        mEpOut = out;
+        mDriver = driver;
+        mPacketSize = in.getMaxPacketSize();
+    }
+
+    /* Returns null before API 26 or if the interface has no bulk endpoints */
+    static FtdiPipeline create(UsbDeviceConnection connection, UsbInterface usbInterface, PinDriver driver) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return null;
+        UsbEndpoint in = null, out = null;
+        for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+            UsbEndpoint ep = usbInterface.getEndpoint(i);
+            if(ep.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK)
+                continue;
+            if(ep.getDirection() == UsbConstants.USB_DIR_IN)
+                in = ep;
+            else
+                out = ep;
+        }
+        if(in == null || out == null) {
+            Log.e(TAG, "create: no bulk endpoints");
+            return null;
+        }
+        return new FtdiPipeline(connection, usbInterface, in, out, driver);
+    }
+
+    @Override
+    public boolean start(int depth) {
+        depth = Math.max(1, Math.min(MAX_DEPTH, depth));
+        // Samples of earlier polls would be stale
+        if(!control(SIO_RESET_REQUEST, SIO_RESET_PURGE_RX) || !control(SIO_RESET_REQUEST, SIO_RESET_PURGE_TX)
+                || !control(SIO_SET_LATENCY_TIMER_REQUEST, PIPELINE_LATENCY_MS)) {
+            Log.e(TAG, "start: could not set up the adapter");
+            return false;
+        }
+        mPolls = new UsbRequest[depth];
+        mReceives = new UsbRequest[depth];
+        mDepth = depth;
+        mSamplesPending = 0;
+        mIdleCount = 0;
+        for (int i = 0; i < depth; i++) {
+            mPolls[i] = request(mEpOut, 1);
+            mReceives[i] = request(mEpIn, mPacketSize);
+            if(mPolls[i] == null || mReceives[i] == null || !queue(mReceives[i])) {
+                stop();
+                return false;
+            }
+            mIdlePolls[mIdleCount++] = mPolls[i];
+        }
+        if(!queuePolls()) {
+            stop();
+            return false;
+        }
+        Log.d(TAG, "start: " + depth + " polls in flight");
+        return true;
+    }
+
+    @Override
+    public int read(int timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while(true) {
+            long left = (deadline - System.nanoTime()) / 1000000;
+            UsbRequest done;
+            try {
+                done = (left > 0) ? mConnection.requestWait(left) : null;
+                if(done == null && left > 0) {
+                    Log.e(TAG, "read: request failed");
+                    return -1;
+                }
+            } catch (TimeoutException e) {
+                done = null;
+            }
+            if(done == null)
+                return recover();
+            mInFlight--;
+            if(done.getEndpoint() == mEpOut) {
+                mSamplesPending++; //The sample is on its way
+                mIdlePolls[mIdleCount++] = done;
+                continue;
+            }
+            // Newest sample of the packets, each starts with two modem status bytes
+            ByteBuffer buffer = (ByteBuffer) done.getClientData();
+            int received = buffer.position();
+            int levels = -1;
+            for (int p = 0; p < received; p += mPacketSize) {
+                int end = Math.min(p + mPacketSize, received);
+                if(end - p > 2) {
+                    levels = buffer.get(end - 1) & 0xFF;
+                    mSamplesPending = Math.max(0, mSamplesPending - (end - p - 2));
+                }
+            }
+            if(!queue(done) || !queuePolls())
+                return -1;
+            if(levels >= 0)
+                return levels;
+        }
+    }
+
+    @Override
+    public int depth() {
+        return mDepth;
+    }
+
+    @Override
+    public int inFlight() {
+        return mInFlight;
+    }
+
+    @Override
+    public long timeouts() {
+        return mTimeouts;
+    }
+
+    @Override
+    public void stop() {
+        if(mDepth == 0)
+            return;
+        for (int i = 0; i < mDepth; i++) {
+            if(mPolls[i] != null)
+                mPolls[i].cancel();
+            if(mReceives[i] != null)
+                mReceives[i].cancel();
+        }
+        // Cancelled requests still complete, they must be reaped before they are closed
+        while(mInFlight > 0) {
+            try {
+                if(mConnection.requestWait(CONTROL_TIMEOUT_MS) == null)
+                    break;
+                mInFlight--;
+            } catch (TimeoutException e) {
+                Log.e(TAG, "stop: " + mInFlight + " requests did not complete");
+                break;
+            }
+        }
+        for (int i = 0; i < mDepth; i++) {
+            if(mPolls[i] != null)
+                mPolls[i].close();
+            if(mReceives[i] != null)
+                mReceives[i].close();
+        }
+        mInFlight = 0;
+        mDepth = 0;
+        mIdleCount = 0;
+        control(SIO_SET_LATENCY_TIMER_REQUEST, DEFAULT_LATENCY_MS);
+    }
+
+    /* Restarts the pipeline after a timeout and reads the pins directly this once */
+    private int recover() {
+        mTimeouts++;
+        int depth = mDepth;
+        Log.e(TAG, "read: timeout, restarting " + depth + " polls");
+        stop();
+        if(!start(depth))
+            return -1;
+        return mDriver.read();
+    }
+
+    /* Writes polls while fewer than depth samples are outstanding */
+    private boolean queuePolls() {
+        while(mIdleCount > 0 && mSamplesPending + (mDepth - mIdleCount) < mDepth) {
+            UsbRequest poll = mIdlePolls[--mIdleCount];
+            if(!queue(poll))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean queue(UsbRequest request) {
+        ByteBuffer buffer = (ByteBuffer) request.getClientData();
+        buffer.clear();
+        if(request.getEndpoint() == mEpOut)
+            buffer.limit(1);
+        if(!request.queue(buffer)) {
+            Log.e(TAG, "queue: failed");
+            return false;
+        }
+        mInFlight++;
+        return true;
+    }
+
+    private UsbRequest request(UsbEndpoint endpoint, int size) {
+        UsbRequest request = new UsbRequest();
+        if(!request.initialize(mConnection, endpoint)) {
+            Log.e(TAG, "request: could not initialize");
+            return null;
+        }
+        request.setClientData(ByteBuffer.allocateDirect(size)); //Zeroed, polls keep the data latch low
+        return request;
+    }
+
+    private boolean control(int request, int value) {
+        return mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, request, value,
+                mInterface.getId(), null, 0, CONTROL_TIMEOUT_MS) >= 0;
+    }
+}
@@ -0,0 +1,79 @@
+package com.docvolt.usbcontrol;
+
+import java.util.Locale;
+
+/*
+    Snapshot of the hot path metrics of one adapter, see UsbIOService.getMetrics(). The histograms
+    count since the service started, since() gives the metrics of the time between two snapshots.
+    Sketch figures are those of the built-in Sketch, UI figures those of the pin change listener.
+*/
+public final class IOMetrics {
+    public final int device;
+    public final long timeNanos; //System.nanoTime() when the snapshot was taken
+    public final float loopRate; //IO loop iterations per second over the last second
+    public final float ioCpuLoad; //Fraction of one core, -1 if unknown
+    public final long transferErrors; //Failed pin and waveform transfers
+    public final int pipelineDepth; //Input polls kept in flight, 0 in lock-step mode
+    public final int requestsInFlight; //USB requests of the pipeline not completed yet
+    public final long pipelineTimeouts; //Polls that timed out and restarted the pipeline
+    public final int reconnects; //Adapters that took over from a lost one
+    public final long timeToFirstIONanos; //From the attach of the adapter to its first write and read, 0 before
+    public final long lastOutageNanos; //From losing the last adapter to the first IO of the next one, 0 if none was lost
+    public final LatencyHistogram.Snapshot writeLatency; //Pin write transfers
+    public final LatencyHistogram.Snapshot readLatency; //Pin read transfers, or the wait for the next poll
+    public final LatencyHistogram.Snapshot sketchPeriod; //Start to start of loop() while it runs
+    public final LatencyHistogram.Snapshot sketchJitter; //Change of the period from one loop() to the next
+    public final LatencyHistogram.Snapshot uiLag; //Pin change seen by the IO thread until onPinChange returned
+
+    IOMetrics(int device, long timeNanos, float loopRate, float ioCpuLoad, long transferErrors,
+              int pipelineDepth, int requestsInFlight, long pipelineTimeouts, int reconnects, long timeToFirstIONanos,
+              long lastOutageNanos, LatencyHistogram.Snapshot writeLatency, LatencyHistogram.Snapshot readLatency,
+              LatencyHistogram.Snapshot sketchPeriod, LatencyHistogram.Snapshot sketchJitter,
+              LatencyHistogram.Snapshot uiLag) {
+        this.device = device;
+        this.timeNanos = timeNanos;
+        this.loopRate = loopRate;
+        this.ioCpuLoad = ioCpuLoad;
+        this.transferErrors = transferErrors;
+        this.pipelineDepth = pipelineDepth;
+        this.requestsInFlight = requestsInFlight;
+        this.pipelineTimeouts = pipelineTimeouts;
+        this.reconnects = reconnects;
+        this.timeToFirstIONanos = timeToFirstIONanos;
+        this.lastOutageNanos = lastOutageNanos;
+        this.writeLatency = writeLatency;
+        this.readLatency = readLatency;
+        this.sketchPeriod = sketchPeriod;
+        this.sketchJitter = sketchJitter;
+        this.uiLag = uiLag;
+    }
+
+    /* Metrics of the time after earlier was taken, loop rate and CPU load stay the latest */
+    public IOMetrics since(IOMetrics earlier) {
+        return new IOMetrics(device, timeNanos, loopRate, ioCpuLoad, transferErrors - earlier.transferErrors,
+                pipelineDepth, requestsInFlight, pipelineTimeouts - earlier.pipelineTimeouts, reconnects - earlier.reconnects,
+                timeToFirstIONanos, lastOutageNanos, writeLatency.since(earlier.writeLatency), readLatency.since(earlier.readLatency),
+                sketchPeriod.since(earlier.sketchPeriod), sketchJitter.since(earlier.sketchJitter),
+                uiLag.since(earlier.uiLag));
+    }
+
+    /* One line per figure, latencies as median / 99th percentile / maximum in microseconds */
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "loop %.0f/s  cpu %.0f%%  errors %d\n%s\nfirst IO %.1f ms  reconnects %d  outage %.0f ms\nwrite %s\nread  %s\nsketch %s  jitter %s\nui    %s",
+                loopRate, ioCpuLoad * 100, transferErrors,
+                (pipelineDepth == 0) ? "lock-step" : String.format(Locale.US, "pipeline %d, %d in flight, %d timeouts",
+                        pipelineDepth, requestsInFlight, pipelineTimeouts),
+                timeToFirstIONanos / 1e6, reconnects, lastOutageNanos / 1e6,
+                format(writeLatency), format(readLatency),
+                format(sketchPeriod), format(sketchJitter), format(uiLag));
+    }
+
+    private static String format(LatencyHistogram.Snapshot h) {
+        if(h.count == 0)
+            return "-";
+        return String.format(Locale.US, "%d/%d/%d us", h.percentileNanos(0.5) / 1000,
+                h.percentileNanos(0.99) / 1000, h.maxNanos / 1000);
+    }
+}
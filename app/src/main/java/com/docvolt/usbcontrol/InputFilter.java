@@ -0,0 +1,214 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Debounce and glitch filter of the physical inputs, applied by the IO thread to every read before
+    the levels reach pins, the edges and the pin rules. See PinBank.setDebounce() and setGlitchFilter().
+      DEBOUNCE  the first edge passes at once, then the pin is locked until its raw level was stable
+                for the given number of reads and time. Takes no latency, for switches and buttons.
+      GLITCH    a new level only passes after it lasted the given number of reads and time. Pulses
+                shorter than that are dropped.
+    The read counts are vertical counters: bit n of plane k is bit k of the counter of pin n, so all
+    pins are counted and compared with a few integer operations per read. Only pins that have a time
+    window and just changed, or whose window may have ended, are looked at one by one.
+    A filter is immutable in its configuration, with() returns a changed copy with fresh state.
+*/
+public final class InputFilter {
+    public static final int NONE = 0, DEBOUNCE = 1, GLITCH = 2;
+    public static final int MAX_SAMPLES = 15; //Largest count of the 4 counter planes
+    private static final int PLANES = 4;
+    private static final int PINS = MAX_FT_PIN_NUMBER + 1;
+
+    // Configuration
+    private final int mDebounce; //Pins in DEBOUNCE mode
+    private final int mFiltered; //Pins in any mode
+    private final int mTimed; //Pins with a time window
+    private final int[] mThreshold; //Bit planes of the read counts
+    private final long[] mWindow; //Time window per pin in ns
+
+    // IO thread only
+    private boolean mPrimed = false;
+    private int mRaw; //Raw levels of the last read
+    private int mOut; //Filtered levels
+    private int mLocked = 0; //DEBOUNCE pins after an edge
+    private int mActive = 0; //Pins whose counter runs
+    private int mWindowDone = 0; //Timed pins whose window ended since their last restart
+    private final int[] mCount = new int[PLANES];
+    private final long[] mSince = new long[PINS];
+    private long mNextDeadline = Long.MAX_VALUE; //No window of an active pin ends before
+    private final AtomicLongArray mRawTransitions = new AtomicLongArray(PINS);
+    private final AtomicLongArray mFilteredTransitions = new AtomicLongArray(PINS);
+
+    /* Raw and filtered level changes per physical pin since the filter was set */
+    public static final class Stats {
+        public final long[] raw = new long[PINS];
+        public final long[] filtered = new long[PINS];
+
+        /* Changes the filter dropped, on all pins */
+        public long suppressed() {
+            long n = 0;
+            for (int pin = 0; pin < PINS; pin++)
+                n += raw[pin] - filtered[pin];
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            for (int pin = 0; pin < PINS; pin++)
+                if(raw[pin] != 0)
+                    s.append(String.format("%s %d/%d ", UsbIOService.PIN_NAMES[pin], filtered[pin], raw[pin]));
+            return s.append("(filtered/raw)").toString();
+        }
+    }
+
+    private InputFilter(int debounce, int filtered, int timed, int[] threshold, long[] window) {
+        mDebounce = debounce;
+        mFiltered = filtered;
+        mTimed = timed;
+        mThreshold = threshold;
+        mWindow = window;
+    }
+
+    /*
+        Copy of filter (null for none) with the filter of pin replaced. samples is clamped to
+        1..MAX_SAMPLES, windowUs 0 means no time window. Returns null if no pin is filtered anymore.
+    */
+    static InputFilter with(InputFilter filter, int pin, int mode, int samples, long windowUs) {
+        int bit = 1 << pin;
+        int debounce = (filter == null) ? 0 : filter.mDebounce & ~bit;
+        int filtered = (filter == null) ? 0 : filter.mFiltered & ~bit;
+        int timed = (filter == null) ? 0 : filter.mTimed & ~bit;
+        int[] threshold = (filter == null) ? new int[PLANES] : filter.mThreshold.clone();
+        long[] window = (filter == null) ? new long[PINS] : filter.mWindow.clone();
+        samples = Math.max(1, Math.min(MAX_SAMPLES, samples));
+        for (int k = 0; k < PLANES; k++)
+            threshold[k] = ((samples >> k) & 1) != 0 ? threshold[k] | bit : threshold[k] & ~bit;
+        window[pin] = Math.max(0, windowUs) * 1000;
+        if(mode != NONE) {
+            filtered |= bit;
+            if(mode == DEBOUNCE)
+                debounce |= bit;
+            if(window[pin] > 0)
+                timed |= bit;
+        }
+        return (filtered == 0) ? null : new InputFilter(debounce, filtered, timed, threshold, window);
+    }
+
+    /*
+        Filters the levels of one read, bit n is the level of pin n. Returns them with the filtered
+        pins replaced. Pins outside inputs are passed through. IO thread only.
+    */
+    int apply(int raw, int inputs, long now) {
+        int f = mFiltered & inputs;
+        if(!mPrimed) {
+            mPrimed = true;
+            mRaw = raw;
+            mOut = raw;
+            return raw;
+        }
+        int changed = (raw ^ mRaw) & f;
+        mRaw = raw;
+        if(changed == 0 && mActive == 0)
+            return (raw & ~f) | (mOut & f); //Nothing bounces, the usual case
+        int oldOut = mOut;
+
+        // A DEBOUNCE pin follows its first edge and locks, a GLITCH pin waits while it differs
+        int follow = changed & mDebounce & ~mLocked;
+        mOut = (mOut & ~follow) | (raw & follow);
+        mLocked = (mLocked | (changed & mDebounce)) & f;
+        int active = mLocked | ((raw ^ mOut) & f & ~mDebounce);
+
+        // Count the reads of the active pins, a raw change restarts the count at 1
+        int carry = ~0;
+        for (int k = 0; k < PLANES; k++) {
+            int c = mCount[k];
+            mCount[k] = c ^ carry;
+            carry &= c;
+        }
+        int restart = changed & active;
+        for (int k = 0; k < PLANES; k++) {
+            int c = mCount[k] | carry; //Saturate at MAX_SAMPLES
+            c = (k == 0) ? c | restart : c & ~restart;
+            mCount[k] = c & active;
+        }
+        // count >= threshold, from the top plane down
+        int greater = 0, equal = ~0;
+        for (int k = PLANES - 1; k >= 0; k--) {
+            int c = mCount[k], t = mThreshold[k];
+            greater |= equal & c & ~t;
+            equal &= ~(c ^ t);
+        }
+        int reached = (greater | equal) & active;
+
+        // Time windows, only pins that restarted or may be due are looked at. A pin whose window
+        // ended only waits for its read count
+        int timed = mTimed & active;
+        if(timed != 0) {
+            for (int bits = restart & timed; bits != 0; bits &= bits - 1) {
+                int pin = Integer.numberOfTrailingZeros(bits);
+                mSince[pin] = now;
+                mNextDeadline = Math.min(mNextDeadline, now + mWindow[pin]);
+            }
+            mWindowDone &= ~restart;
+            int waiting = timed & ~mWindowDone;
+            if(waiting != 0 && now - mNextDeadline < 0) {
+                reached &= ~waiting;
+            } else if(waiting != 0) {
+                long next = Long.MAX_VALUE;
+                for (int bits = waiting; bits != 0; bits &= bits - 1) {
+                    int pin = Integer.numberOfTrailingZeros(bits);
+                    long deadline = mSince[pin] + mWindow[pin];
+                    if(now - deadline < 0) {
+                        reached &= ~(1 << pin);
+                        next = Math.min(next, deadline);
+                    } else {
+                        mWindowDone |= 1 << pin;
+                    }
+                }
+                mNextDeadline = next;
+            }
+        }
+
+        // Settled pins take their raw level and unlock
+        mOut = (mOut & ~reached) | (raw & reached);
+        mLocked &= ~reached;
+        for (int k = 0; k < PLANES; k++)
+            mCount[k] &= ~reached;
+        mActive = active & ~reached;
+
+        for (int bits = changed; bits != 0; bits &= bits - 1) {
+            int pin = Integer.numberOfTrailingZeros(bits);
+            mRawTransitions.lazySet(pin, mRawTransitions.get(pin) + 1);
+        }
+        for (int bits = (oldOut ^ mOut) & f; bits != 0; bits &= bits - 1) {
+            int pin = Integer.numberOfTrailingZeros(bits);
+            mFilteredTransitions.lazySet(pin, mFilteredTransitions.get(pin) + 1);
+        }
+        return (raw & ~f) | (mOut & f);
+    }
+
+    /* Pins that still wait to settle, the IO thread keeps polling at full rate for them. IO thread only */
+    int pending() {
+        return mActive;
+    }
+
+    /* Time until the next time window of a pending pin ends, Long.MAX_VALUE if none. IO thread only */
+    long nanosUntilNext(long now) {
+        if((mActive & mTimed & ~mWindowDone) == 0 || mNextDeadline == Long.MAX_VALUE)
+            return Long.MAX_VALUE;
+        return Math.max(0, mNextDeadline - now);
+    }
+
+    public Stats stats() {
+        Stats stats = new Stats();
+        for (int pin = 0; pin < PINS; pin++) {
+            stats.raw[pin] = mRawTransitions.get(pin);
+            stats.filtered[pin] = mFilteredTransitions.get(pin);
+        }
+        return stats;
+    }
+}
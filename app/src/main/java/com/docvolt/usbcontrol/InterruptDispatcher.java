@@ -0,0 +1,117 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.FALLING;
+import static com.docvolt.usbcontrol.UsbIOService.RISING;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+    Calls the handlers attached with attachInterrupt() on their own thread. The dispatcher follows the
+    edge ring of the IO thread, so the IO thread never waits for a handler. If handlers are too slow
+    and the ring overruns, the lost edges are counted for every attached handler.
+*/
+class InterruptDispatcher extends Thread {
+    private static final String TAG = "interruptdispatcher";
+    private static final long IDLE_WAIT_NS = 3600000000000L;
+
+    public interface Handler {
+        /* Called for every matching edge, level is the level of the pin after it */
+        void onInterrupt(int pin, int level);
+    }
+
+    /* Accounting of one attached handler */
+    public static final class Stats {
+        public final long calls;
+        public final long lost;
+        public final long avgLatencyNs; //From the edge timestamp to the handler call
+        public final long maxLatencyNs;
+
+        Stats(long calls, long lost, long avgLatencyNs, long maxLatencyNs) {
+            this.calls = calls;
+            this.lost = lost;
+            this.avgLatencyNs = avgLatencyNs;
+            this.maxLatencyNs = maxLatencyNs;
+        }
+    }
+
+    private static final class Slot {
+        final int mode;
+        final Handler handler;
+        volatile long calls = 0;
+        volatile long lost = 0;
+        volatile long latencySum = 0;
+        volatile long latencyMax = 0;
+
+        Slot(int mode, Handler handler) {
+            this.mode = mode;
+            this.handler = handler;
+        }
+    }
+
+    private final EdgeRing mEdges;
+    private final EdgeRing.Cursor mCursor;
+    private final AtomicReferenceArray<Slot> mSlots;
+
+    InterruptDispatcher(EdgeRing edges, int pins) {
+        mEdges = edges;
+        mCursor = edges.cursor();
+        mSlots = new AtomicReferenceArray<>(pins);
+        setName("interruptThread");
+        setDaemon(true);
+    }
+
+    void attach(int pin, int mode, Handler handler) {
+        mSlots.set(pin, new Slot(mode, handler));
+    }
+
+    void detach(int pin) {
+        mSlots.set(pin, null);
+    }
+
+    Stats stats(int pin) {
+        Slot slot = mSlots.get(pin);
+        if (slot == null)
+            return null;
+        long calls = slot.calls;
+        return new Stats(calls, slot.lost, (calls == 0) ? 0 : slot.latencySum / calls, slot.latencyMax);
+    }
+
+    @Override
+    public void run() {
+        long lost = 0;
+        while (true) {
+            if (!mCursor.poll()) {
+                mEdges.await(mCursor, System.nanoTime() + IDLE_WAIT_NS);
+                continue;
+            }
+            if (mCursor.lost != lost) {
+                for (int pin = 0; pin < mSlots.length(); pin++) {
+                    Slot slot = mSlots.get(pin);
+                    if (slot != null)
+                        slot.lost += mCursor.lost - lost;
+                }
+                lost = mCursor.lost;
+            }
+            int changed = (mCursor.edge >> 8) & 0xFF;
+            for (; changed != 0; changed &= changed - 1) {
+                int pin = Integer.numberOfTrailingZeros(changed);
+                Slot slot = (pin < mSlots.length()) ? mSlots.get(pin) : null;
+                int level = (mCursor.edge >> pin) & 1;
+                if (slot == null || (slot.mode == RISING && level == 0) || (slot.mode == FALLING && level == 1))
+                    continue;
+                long latency = System.nanoTime() - mCursor.time;
+                slot.calls++;
+                slot.latencySum += latency;
+                if (latency > slot.latencyMax)
+                    slot.latencyMax = latency;
+                try {
+                    slot.handler.onInterrupt(pin, level);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Interrupt handler of pin " + pin + " failed", e);
+                }
+            }
+        }
+    }
+}
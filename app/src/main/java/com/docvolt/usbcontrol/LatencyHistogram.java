@@ -0,0 +1,106 @@
+package com.docvolt.usbcontrol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Log-linear histogram of durations in nanoseconds, like an HDR histogram with 4 significant bits:
+    every power of two is split into 16 buckets, so a bucket is at most 1/16 wider than its values.
+    Durations from about two minutes on share the last bucket.
+    One thread records, record() neither allocates nor locks. Any thread can take a Snapshot.
+*/
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    private static final int COUNT = 0, TOTAL = 1, MAX = 2;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray mTotals = new AtomicLongArray(3);
+
+    /*
+        Counts and totals since the histogram was created. since() turns two snapshots into the
+        durations recorded in between.
+    */
+    public static final class Snapshot {
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos; //Of all durations, also for a snapshot returned by since()
+        private final long[] mCounts;
+
+        Snapshot(long count, long totalNanos, long maxNanos, long[] counts) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            mCounts = counts;
+        }
+
+        public long meanNanos() {
+            return (count == 0) ? 0 : totalNanos / count;
+        }
+
+        /* Duration that the fraction q of the recorded durations does not exceed, 0 if there are none */
+        public long percentileNanos(double q) {
+            long total = 0;
+            for (long c : mCounts)
+                total += c;
+            if(total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if(seen >= rank)
+                    return Math.min(highestOf(i), maxNanos);
+            }
+            return maxNanos;
+        }
+
+        /* Durations recorded after earlier was taken */
+        public Snapshot since(Snapshot earlier) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] = mCounts[i] - earlier.mCounts[i];
+            return new Snapshot(count - earlier.count, totalNanos - earlier.totalNanos, maxNanos, counts);
+        }
+    }
+
+    /* Recording side, only called from the owning thread */
+    void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        int i = bucketOf(nanos);
+        mCounts.lazySet(i, mCounts.get(i) + 1);
+        mTotals.lazySet(TOTAL, mTotals.get(TOTAL) + nanos);
+        if(nanos > mTotals.get(MAX))
+            mTotals.lazySet(MAX, nanos);
+        mTotals.lazySet(COUNT, mTotals.get(COUNT) + 1);
+    }
+
+    public Snapshot snapshot() {
+        long count = mTotals.get(COUNT);
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = mCounts.get(i);
+        return new Snapshot(count, mTotals.get(TOTAL), mTotals.get(MAX), counts);
+    }
+
+    static int bucketOf(long nanos) {
+        if(nanos < SUB_BUCKETS)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /* Largest duration that falls into bucket i */
+    static long highestOf(int i) {
+        if(i < SUB_BUCKETS)
+            return i;
+        int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+        long low = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return (i == BUCKETS - 1) ? Long.MAX_VALUE : low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
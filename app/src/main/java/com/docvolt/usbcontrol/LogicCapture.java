@@ -0,0 +1,242 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.PIN_NAMES;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+/*
+    Logic analyzer capture of the eight pins of one adapter into a memory-mapped file, see
+    PinBank.startCapture(). The IO thread appends a record for every read that changed a level, or for
+    every read at all, without allocating. The file is mapped at its maximum size when the capture
+    starts, so the memory it takes is bounded and pages are written back by the kernel.
+    The capture ends when the file is full, the duration is over or stop() is called. In the first
+    two cases it detaches from the bank on its own and the file is cut to the recorded length.
+
+    File format, little endian:
+      0  int   magic "FTLA"
+      4  byte  version
+      5  byte  flags, bit 0 set if every read was recorded
+      6  byte  pins of the adapter
+      7  byte  reserved
+      8  long  start, milliseconds since the epoch
+      16 long  start, System.nanoTime()
+      24 long  bytes of records, updated with every record
+      32       records: nanoseconds since the previous record (since the start for the first one) as
+               unsigned LEB128 varint, followed by the levels byte, bit n set if pin n is high
+*/
+public final class LogicCapture {
+    private static final String TAG = "logiccapture";
+    private static final int MAGIC = 0x414C5446; //"FTLA" read as little endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int LENGTH_OFFSET = 24;
+    private static final int MAX_RECORD_SIZE = 11; //10 varint bytes of a long and the levels
+
+    private final PinBank mBank;
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mBuffer;
+    private final boolean mEverySample;
+    private final long mStartNanos;
+    private final long mMaxDurationNanos;
+
+    // IO thread only while the capture is attached to the bank
+    private long mLastNanos;
+    private int mLastLevels = -1;
+    private volatile long mRecords = 0;
+    private volatile boolean mFull = false;
+    private boolean mClosed = false;
+
+    private LogicCapture(PinBank bank, File file, RandomAccessFile raf, MappedByteBuffer buffer,
+                         boolean everySample, long maxDurationNanos) {
+        mBank = bank;
+        mFile = file;
+        mRaf = raf;
+        mBuffer = buffer;
+        mEverySample = everySample;
+        mMaxDurationNanos = maxDurationNanos;
+        mStartNanos = System.nanoTime();
+        mLastNanos = mStartNanos;
+    }
+
+    /* Creates the file and maps it, returns null if that failed */
+    static LogicCapture create(PinBank bank, File file, int maxBytes, long maxDurationMs, boolean everySample, int pinMask) {
+        if(maxBytes < HEADER_SIZE + MAX_RECORD_SIZE) {
+            Log.e(TAG, "create: maxBytes too small");
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            raf.setLength(maxBytes);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.put((byte) VERSION);
+            buffer.put((byte) (everySample ? 1 : 0));
+            buffer.put((byte) pinMask);
+            buffer.put((byte) 0);
+            buffer.putLong(System.currentTimeMillis());
+            LogicCapture capture = new LogicCapture(bank, file, raf, buffer, everySample,
+                    (maxDurationMs <= 0) ? Long.MAX_VALUE : maxDurationMs * 1000000);
+            buffer.putLong(capture.mStartNanos);
+            buffer.putLong(0);
+            return capture;
+        } catch (IOException e) {
+            Log.e(TAG, "create: " + e.getMessage());
+            if(raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /* Appends a record if the levels changed or every read is recorded. IO thread only, under usbLock */
+    void sample(long now, int levels) {
+        if(mFull)
+            return;
+        if(now - mStartNanos > mMaxDurationNanos || mBuffer.remaining() < MAX_RECORD_SIZE) {
+            //Detach here, the file is written back and closed off the IO thread
+            mFull = true;
+            mBank.capture = null;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            }, TAG).start();
+            return;
+        }
+        if(levels == mLastLevels && !mEverySample)
+            return;
+        long delta = Math.max(0, now - mLastNanos);
+        while((delta & ~0x7FL) != 0) {
+            mBuffer.put((byte) ((delta & 0x7F) | 0x80));
+            delta >>>= 7;
+        }
+        mBuffer.put((byte) delta);
+        mBuffer.put((byte) levels);
+        mBuffer.putLong(LENGTH_OFFSET, mBuffer.position() - HEADER_SIZE);
+        mLastNanos = now;
+        mLastLevels = levels;
+        mRecords++;
+    }
+
+    /* True until the file is full, the duration is over or stop() was called */
+    public boolean isRunning() {
+        return !mFull && mBank.capture == this;
+    }
+
+    public long getRecords() {
+        return mRecords;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /* Ends the capture, writes the file back and cuts it to the recorded length */
+    public synchronized void stop() {
+        synchronized (mBank.usbLock) {
+            if(mBank.capture == this)
+                mBank.capture = null;
+        }
+        if(mClosed)
+            return;
+        mClosed = true;
+        try {
+            mBuffer.force();
+            mRaf.getChannel().truncate(mBuffer.position());
+            mRaf.close();
+        } catch (IOException e) {
+            Log.e(TAG, "stop: " + e.getMessage());
+        }
+        Log.d(TAG, String.format("stop: %d records, %d bytes in %s", mRecords, mBuffer.position(), mFile));
+    }
+
+    /*
+        Converts a capture file into a Value Change Dump for PulseView or GTKWave. The capture may still
+        be running, everything recorded up to now is converted. Returns false if the file could not be
+        read or written.
+    */
+    public static boolean exportVcd(File capture, File vcd) {
+        RandomAccessFile raf = null;
+        Writer out = null;
+        try {
+            raf = new RandomAccessFile(capture, "r");
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            if(in.remaining() < HEADER_SIZE || in.getInt(0) != MAGIC || in.get(4) != VERSION) {
+                Log.e(TAG, "exportVcd: not a capture file");
+                return false;
+            }
+            int pinMask = in.get(6) & 0xFF;
+            long startMillis = in.getLong(8);
+            long end = Math.min(HEADER_SIZE + in.getLong(LENGTH_OFFSET), in.limit());
+
+            out = new BufferedWriter(new FileWriter(vcd));
+            out.write("$date " + new Date(startMillis) + " $end\n");
+            out.write("$version usbcontrol logic capture $end\n");
+            out.write("$timescale 1ns $end\n");
+            out.write("$scope module adapter $end\n");
+            for (int pin = 0; pin < PIN_NAMES.length; pin++)
+                if((pinMask & (1 << pin)) != 0)
+                    out.write("$var wire 1 " + (char) ('!' + pin) + " " + PIN_NAMES[pin] + " $end\n");
+            out.write("$upscope $end\n$enddefinitions $end\n");
+
+            long time = 0;
+            int last = -1;
+            in.position(HEADER_SIZE);
+            while(in.position() < end) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = in.get();
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0 && in.position() < end);
+                if(in.position() >= end)
+                    break; //Record cut off
+                int levels = in.get() & 0xFF;
+                time += delta;
+                int changed = (last == -1) ? pinMask : (levels ^ last) & pinMask;
+                last = levels;
+                if(changed == 0)
+                    continue;
+                out.write("#" + time + "\n");
+                for (int pin = 0; pin < PIN_NAMES.length; pin++)
+                    if((changed & (1 << pin)) != 0)
+                        out.write(((levels & (1 << pin)) != 0 ? '1' : '0') + Character.toString((char) ('!' + pin)) + "\n");
+            }
+            out.write("#" + time + "\n");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "exportVcd: " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if(out != null)
+                    out.close();
+                if(raf != null)
+                    raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
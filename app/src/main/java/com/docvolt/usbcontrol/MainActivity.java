@@ -13,12 +13,15 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.ActivityInfo;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.CompoundButton;
 import android.widget.RadioButton;
 import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
@@ -31,6 +34,14 @@ import java.util.Objects;
 public class MainActivity extends AppCompatActivity implements View.OnClickListener, ArduinoListener, SeekBar.OnSeekBarChangeListener {
     private final String TAG = "MainActivity";
     UsbIOService  mUsbIOService = new UsbIOService();
+    private final CompoundButton[] mPinViews = new CompoundButton[MAX_FT_PIN_NUMBER + 1]; //Indexed by pin number
+
+    // Metrics overlay, refreshed while it is shown
+    private static final long METRICS_REFRESH_MS = 500;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private UsbIOService.UsbBinder mBinder = null;
+    private TextView mMetricsView;
+    private IOMetrics mLastMetrics = null;
 
     //SurfaceHolder mPreview;
     //Camera mCamera;
@@ -58,6 +69,25 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         findViewById(R.id.cb_rxd).setOnClickListener(this);
         ((SeekBar)findViewById(R.id.sb_speed)).setOnSeekBarChangeListener(this);
 
+        //Buttons representing outputs, radiobuttons representing inputs
+        mPinViews[PIN_TXD] = findViewById(R.id.btn_txd);
+        mPinViews[PIN_DTR] = findViewById(R.id.btn_dtr);
+        mPinViews[PIN_RTS] = findViewById(R.id.btn_rts);
+        mPinViews[PIN_RXD] = findViewById(R.id.btn_rxd);
+        mPinViews[PIN_RI] = findViewById(R.id.rb_ri);
+        mPinViews[PIN_DSR] = findViewById(R.id.rb_dsr);
+        mPinViews[PIN_DCD] = findViewById(R.id.rb_dcd);
+        mPinViews[PIN_CTS] = findViewById(R.id.rb_cts);
+
+        mMetricsView = findViewById(R.id.tv_metrics);
+        findViewById(R.id.textView).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                showMetrics(mMetricsView.getVisibility() != View.VISIBLE);
+                return true;
+            }
+        });
+
         bindService(new Intent(this, UsbIOService.class), connection, Context.BIND_AUTO_CREATE);
 
         IntentFilter usbIntentFilter = new IntentFilter();
@@ -73,20 +103,30 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     @Override
-    public void onPinChange() {
+    protected void onStart() {
+        super.onStart();
+        if(mMetricsView.getVisibility() == View.VISIBLE)
+            showMetrics(true);
+    }
+
+    /* The metrics refresh reposts itself, it must not keep the activity alive in the background */
+    @Override
+    protected void onStop() {
+        mHandler.removeCallbacks(mMetricsUpdate);
+        super.onStop();
+    }
+
+    @Override
+    public void onPinChange(int changedMask, int pins) {
         //Log.d(TAG, "onPinChange");
 
-        //Change text color of buttons
-        ((ToggleButton) findViewById(R.id.btn_txd)).setChecked(digitalRead(PIN_TXD) == 1);
-        ((ToggleButton)findViewById(R.id.btn_dtr)).setChecked(digitalRead(PIN_DTR) == 1);
-        ((ToggleButton)findViewById(R.id.btn_rts)).setChecked(digitalRead(PIN_RTS) == 1);
-        ((ToggleButton)findViewById(R.id.btn_rxd)).setChecked(digitalRead(PIN_RXD) == 1);
-
-        //Radiobuttons representing inputs
-        ((RadioButton)findViewById(R.id.rb_ri)).setChecked(digitalRead(PIN_RI) == 1);
-        ((RadioButton)findViewById(R.id.rb_dsr)).setChecked(digitalRead( PIN_DSR) == 1);
-        ((RadioButton)findViewById(R.id.rb_dcd)).setChecked(digitalRead(PIN_DCD) == 1);
-        ((RadioButton)findViewById(R.id.rb_cts)).setChecked(digitalRead(PIN_CTS) == 1);
+        //Only touch the widgets of pins that changed
+        int changed = changedMask & 0xFF;
+        while(changed != 0) {
+            int pin = Integer.numberOfTrailingZeros(changed);
+            changed &= changed - 1;
+            mPinViews[pin].setChecked((pins & (1 << pin)) != 0);
+        }
     }
 
     @Override
@@ -130,6 +170,27 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         Log.d("APP", "onStopTrackingTouch");
     }
 
+    /* Shows or hides the metrics overlay, it lists the figures of the last refresh interval */
+    private void showMetrics(boolean show) {
+        mHandler.removeCallbacks(mMetricsUpdate);
+        mLastMetrics = null;
+        mMetricsView.setVisibility(show ? View.VISIBLE : View.GONE);
+        if(show)
+            mMetricsUpdate.run();
+    }
+
+    private final Runnable mMetricsUpdate = new Runnable() {
+        @Override
+        public void run() {
+            IOMetrics metrics = (mBinder == null) ? null : mBinder.getMetrics(0);
+            if(metrics != null) {
+                mMetricsView.setText((mLastMetrics == null ? metrics : metrics.since(mLastMetrics)).toString());
+                mLastMetrics = metrics;
+            }
+            mHandler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
+
     /*This handles authentication of USB devices*/
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         private AlertDialog no_usb_dialog= null;
@@ -177,6 +238,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             Log.d(TAG, "onServiceConnected");
             UsbIOService.UsbBinder binder = (UsbIOService.UsbBinder) service;
+            mBinder = binder;
             mUsbIOService = binder.getService();
             mUsbIOService.setArduinoFunctionsCB(MainActivity.this);
         }
@@ -185,6 +247,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         public void onServiceDisconnected(ComponentName componentName) {
             Log.d(TAG, "ServiceDisconnected");
             mUsbIOService = null;
+            mBinder = null;
         }
     };
 
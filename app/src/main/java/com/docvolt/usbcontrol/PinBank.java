@@ -0,0 +1,478 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.FALLING;
+import static com.docvolt.usbcontrol.UsbIOService.INPUT;
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+import static com.docvolt.usbcontrol.UsbIOService.RISING;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Pin state of one adapter: the physical pins, its IO thread's edges, PWM and timers.
+    The lower 8 bits of pins represent the physical IO values, a set bit means the pin is low.
+    The upper 24 bits are virtual pins used by the app.
+    Pin numbers follow the FT232R, see UsbIOService.PIN_TXD and following.
+*/
+public final class PinBank {
+    private static final String TAG = "pinbank";
+    private static final int EDGE_RING_SIZE = 4096;
+
+    final int device;
+    final AtomicInteger pins = new AtomicInteger(0xFFFFFF00); //Output
+    volatile int mode = 0xFFFFFF00; //Input mode {INPUT | OUTPUT}
+    final EdgeRing edges = new EdgeRing(EDGE_RING_SIZE, 0xFF);
+    final TimerWheel timers;
+    final SoftPwm pwm;
+    final BusMaster bus = new BusMaster(this);
+
+    // Serializes the USB transfers of the IO thread and waveform streaming
+    final Object usbLock = new Object();
+    BitBangStream bitBang = null;
+    int writtenLow = 0; //Pins the IO thread last pulled low
+    int lastLevels = 0xFF; //Input levels of the last read, IO thread only
+    int pinMask = 0xFF; //Pins of the open adapter
+    volatile LogicCapture capture = null; //Only changed under usbLock
+    volatile PinRules rules = null;
+    volatile InputFilter filter = null; //Replaced under the bank's lock
+    PinPipeline pipeline = null; //Pipeline of the IO thread while it polls asynchronously, under usbLock
+
+    // Written by the IO thread
+    volatile Thread ioWaiter = null; //IO thread while it waits for the next poll
+    volatile long writeNanos = 0; //Average duration of a pin write transfer
+    volatile float pollRate = 0;
+    volatile float ioCpuLoad = 0;
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    volatile long transferErrors = 0; //Only changed under usbLock
+    volatile int pipelineDepth = 0; //Polls kept in flight, 0 in lock-step mode
+    volatile int requestsInFlight = 0;
+    volatile long pipelineTimeouts = 0;
+    // Reconnects, written by the IO thread except attachNanos
+    volatile long attachNanos = 0; //When the adapter attached, or was opened without an attach
+    volatile long detachNanos = 0; //When the last adapter was lost, 0 before
+    volatile long timeToFirstIONanos = 0; //From attachNanos to the first completed write and read
+    volatile long lastOutageNanos = 0; //From losing the adapter to the first IO of the next one
+    volatile int reconnects = 0;
+
+    private InterruptDispatcher mInterrupts = null;
+
+    // Pending port write of a beginBatch()/commit() block, one per thread
+    private static final class Batch {
+        int depth;
+        int mask;
+        int values;
+    }
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+    private final ThreadLocal<EdgeRing.Cursor> mPulseCursor = new ThreadLocal<EdgeRing.Cursor>() {
+        @Override
+        protected EdgeRing.Cursor initialValue() {
+            return edges.cursor();
+        }
+    };
+
+    PinBank(int device, long epoch) {
+        this.device = device;
+        timers = new TimerWheel(epoch);
+        pwm = new SoftPwm(MAX_FT_PIN_NUMBER + 1, 100, epoch);
+    }
+
+    public int digitalRead(int pin) {
+        int b = pins.get() & (1 << pin);
+        //Log.d(TAG,"digitalRead: " + b);
+        return (b == 0)? 1 : 0;
+    }
+
+    public void digitalWrite(int pin, int value) {
+        digitalWritePort(1 << pin, (value == 0) ? 0 : 1 << pin);
+    }
+
+    /*
+        Writes all pins in mask at once, bit n of values is the value of pin n. Pins that are not
+        outputs are left alone. The physical pins of one call go out in a single USB transfer.
+    */
+    public void digitalWritePort(int mask, int values) {
+        mask &= mode; //Only affect pins that are masked as output
+        if(mask == 0)
+            return;
+        Batch batch = mBatch.get();
+        if(batch.depth > 0) {
+            batch.mask |= mask;
+            batch.values = (batch.values & ~mask) | (values & mask);
+            return;
+        }
+        if((mask & pwm.mask()) != 0)
+            pwm.disable(mask); //Like on Arduino, digitalWrite ends PWM on the pin
+        int old = updatePins(mask, ~values); //A set bit switches the pin on (low)
+        if(((old ^ ~values) & mask) != 0) {
+            UsbIOService.notifyChange();
+            if((mask & 0xFF) != 0)
+                wakeIO();
+        }
+    }
+
+    /*
+        Collects the digitalWrite()s of the calling thread until the matching commit(), which
+        applies them as one port write. Pending writes are not visible to digitalRead() before.
+    */
+    public void beginBatch() {
+        mBatch.get().depth++;
+    }
+
+    public void commit() {
+        Batch batch = mBatch.get();
+        if(batch.depth == 0) {
+            Log.e(TAG, "commit: no batch started");
+            return;
+        }
+        if(--batch.depth == 0 && batch.mask != 0) {
+            int mask = batch.mask;
+            batch.mask = 0;
+            digitalWritePort(mask, batch.values);
+        }
+    }
+
+    public void pinMode(int pin, int mode) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, "pinMode: pin out of range");
+            return;
+        }
+        if(mode == INPUT) {
+            pwm.disable(1 << pin);
+            digitalWrite(pin, 1); //Default High (pullup)
+            this.mode &= ~(1 << pin);
+        }
+        else {
+            this.mode |= 1 << pin;
+            digitalWrite(pin, 0); //Default Low
+        }
+        Log.d(TAG, "pinMode: " + this.mode);
+    }
+
+    /* Drives an output pin with software PWM at a duty cycle of value/255. Returns false if it is no output */
+    public boolean pwmWrite(int pin, int value) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER || ((1 << pin) & mode) == 0)
+            return false;
+        pwm.setDuty(pin, value);
+        wakeIO();
+        return true;
+    }
+
+    /* Sets the PWM frequency of all physical pins, 100 Hz by default */
+    public void setPwmFrequency(int hz) {
+        pwm.setFrequency(hz);
+        Log.d(TAG, String.format("setPwmFrequency: %d Hz, effective %d Hz with %.1f bit resolution",
+                hz, getPwmFrequency(), getPwmResolutionBits()));
+        wakeIO();
+    }
+
+    /* PWM frequency the IO loop can keep, lower than the set one if a write takes more than half a period */
+    public int getPwmFrequency() {
+        long write = writeNanos;
+        int hz = pwm.frequency();
+        return (write == 0) ? hz : (int) Math.min(hz, 1000000000L / (2 * write));
+    }
+
+    /* Duty cycle resolution in bits, limited by how many pin writes fit into one PWM period */
+    public float getPwmResolutionBits() {
+        long write = writeNanos;
+        if(write == 0)
+            return 8;
+        double steps = 1e9 / pwm.frequency() / write;
+        return (float) Math.max(0, Math.min(8, Math.log(steps) / Math.log(2)));
+    }
+
+    /*
+        Plays a waveform on the output pins in synchronous bit-bang mode. Each byte of states is one
+        sample, bit n drives pin n HIGH (1) or LOW (0) if the pin is an output. Returns the input
+        levels sampled for every state, or null if the adapter is not connected, has no bit-bang
+        streaming or the transfer failed. The IO thread is paused while the waveform plays.
+        Afterwards the output pins keep the levels of the last state, like an SPI or I2C bus left idle.
+    */
+    public byte[] playWaveform(byte[] states, int sampleRateHz) {
+        synchronized (usbLock) {
+            if(bitBang == null) {
+                Log.e(TAG, "playWaveform: no device connected that supports it");
+                return null;
+            }
+            if(pipeline != null)
+                pipeline.stop(); //Its polls use the same endpoints, the IO thread restarts it
+            //Going back to the bank's levels after the last state would add an edge, e.g. a clock
+            int outputs = mode & pinMask;
+            int idleLow = (states.length == 0) ? pins.get() & outputs : ~states[states.length - 1] & outputs;
+            byte[] samples = bitBang.play(states, mode & 0xFF, sampleRateHz, idleLow);
+            if(samples == null) {
+                transferErrors++;
+                writtenLow = -1; //Unknown, the IO thread writes the bank's levels again
+                return null;
+            }
+            updatePins(outputs, idleLow);
+            writtenLow = idleLow;
+            return samples;
+        }
+    }
+
+    /*
+        Starts recording the levels of the pins into a file, see LogicCapture. With everySample false
+        only reads that changed a level are recorded. The capture stops when the file reaches maxBytes,
+        after maxDurationMs (0 for no limit) or on LogicCapture.stop(). Returns null if a capture is
+        already running or the file could not be created.
+    */
+    public LogicCapture startCapture(File file, int maxBytes, long maxDurationMs, boolean everySample) {
+        if(capture != null) {
+            Log.e(TAG, "startCapture: a capture is already running");
+            return null;
+        }
+        int mask;
+        synchronized (usbLock) {
+            mask = pinMask;
+        }
+        LogicCapture started = LogicCapture.create(this, file, maxBytes, maxDurationMs, everySample, mask);
+        if(started == null)
+            return null;
+        synchronized (usbLock) {
+            if(capture == null) {
+                capture = started;
+                return started;
+            }
+        }
+        Log.e(TAG, "startCapture: a capture is already running");
+        started.stop();
+        return null;
+    }
+
+    /*
+        Replaces the rules the IO thread evaluates after every read, see PinRules for the syntax.
+        No rules clear the table. Returns false and keeps the old rules if a rule is invalid.
+    */
+    public boolean setPinRules(String... rules) {
+        if(rules == null || rules.length == 0) {
+            this.rules = null;
+            return true;
+        }
+        PinRules compiled = PinRules.compile(rules);
+        if(compiled == null)
+            return false;
+        this.rules = compiled;
+        wakeIO();
+        return true;
+    }
+
+    /* Evaluation cost and reaction latency of the current rules, null if there are none */
+    public PinRules.Stats pinRuleStats() {
+        PinRules current = rules;
+        return (current == null) ? null : current.stats();
+    }
+
+    /*
+        Debounces a physical input: its first edge passes at once, further edges are ignored until the
+        pin was stable for samples reads (1-15) and windowUs microseconds. Meant for switches.
+        samples 1 and windowUs 0 remove the filter of the pin.
+    */
+    public synchronized void setDebounce(int pin, int samples, long windowUs) {
+        setInputFilter(pin, InputFilter.DEBOUNCE, samples, windowUs);
+    }
+
+    /*
+        Drops pulses of a physical input that last fewer than samples reads (1-15) or less than
+        minPulseUs microseconds. A level change passes delayed by that much.
+        samples 1 and minPulseUs 0 remove the filter of the pin.
+    */
+    public synchronized void setGlitchFilter(int pin, int samples, long minPulseUs) {
+        setInputFilter(pin, InputFilter.GLITCH, samples, minPulseUs);
+    }
+
+    /* Raw and filtered level changes of the filtered pins, null if no pin is filtered */
+    public InputFilter.Stats inputFilterStats() {
+        InputFilter current = filter;
+        return (current == null) ? null : current.stats();
+    }
+
+    private void setInputFilter(int pin, int mode, int samples, long windowUs) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, "setInputFilter: pin out of range");
+            return;
+        }
+        if(samples <= 1 && windowUs <= 0)
+            mode = InputFilter.NONE;
+        filter = InputFilter.with(filter, pin, mode, samples, windowUs);
+        Log.d(TAG, String.format("setInputFilter: pin %d mode %d, %d reads, %d us", pin, mode, samples, windowUs));
+    }
+
+    /* SPI, I2C, 1-Wire and shiftOut()/shiftIn() on the pins of this adapter */
+    public BusMaster bus() {
+        return bus;
+    }
+
+    /* Input edges recorded by the IO thread with System.nanoTime() timestamps, see EdgeRing */
+    public EdgeRing getEdges() {
+        return edges;
+    }
+
+    /* Number of RISING, FALLING or CHANGE edges seen on a physical input pin since the service started */
+    public long edgeCount(int pin, int mode) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, "edgeCount: pin out of range");
+            return 0;
+        }
+        switch(mode) {
+            case RISING: return edges.risingEdges(pin);
+            case FALLING: return edges.fallingEdges(pin);
+            default: return edges.risingEdges(pin) + edges.fallingEdges(pin);
+        }
+    }
+
+    /*
+        Like Arduino attachInterrupt(): calls handler on every RISING, FALLING or CHANGE edge of a
+        physical input pin. Handlers run one after another on the interrupt thread, never on the IO thread.
+        A pin has at most one handler, attaching another one replaces it.
+    */
+    public synchronized void attachInterrupt(int pin, int mode, InterruptDispatcher.Handler handler) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, "attachInterrupt: pin out of range");
+            return;
+        }
+        if(mInterrupts == null) {
+            mInterrupts = new InterruptDispatcher(edges, MAX_FT_PIN_NUMBER + 1);
+            mInterrupts.setName("interruptThread" + device);
+            mInterrupts.start();
+        }
+        mInterrupts.attach(pin, mode, handler);
+    }
+
+    public synchronized void detachInterrupt(int pin) {
+        if(mInterrupts != null && pin >= 0 && pin <= MAX_FT_PIN_NUMBER)
+            mInterrupts.detach(pin);
+    }
+
+    /* Calls, lost edges and latency of the handler attached to pin, or null if there is none */
+    public synchronized InterruptDispatcher.Stats interruptStats(int pin) {
+        if(mInterrupts == null || pin < 0 || pin > MAX_FT_PIN_NUMBER)
+            return null;
+        return mInterrupts.stats(pin);
+    }
+
+    /*
+        Like Arduino pulseIn(): waits for pin to go to level, and returns how long it stayed there in
+        microseconds, measured from the edge timestamps. A pulse already in progress is skipped.
+        Returns 0 if no complete pulse was seen within timeoutUs.
+    */
+    public long pulseIn(int pin, int level, long timeoutUs) {
+        if(pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, "pulseIn: pin out of range");
+            return 0;
+        }
+        int bit = 1 << pin;
+        int want = (level == 0) ? 0 : bit;
+        long deadline = System.nanoTime() + timeoutUs * 1000;
+        EdgeRing.Cursor cursor = mPulseCursor.get();
+        cursor.reset();
+        //0: wait for a running pulse to end, 1: wait for the start, 2: wait for the end
+        int state = ((edges.levels() & bit) == want) ? 0 : 1;
+        long start = 0;
+        while(System.nanoTime() - deadline < 0) {
+            if(!cursor.poll()) {
+                edges.await(cursor, deadline);
+                continue;
+            }
+            if(((cursor.edge >> 8) & bit) == 0)
+                continue;
+            boolean atLevel = (cursor.edge & bit) == want;
+            if(state == 0 && !atLevel)
+                state = 1;
+            else if(state == 1 && atLevel) {
+                start = cursor.time;
+                state = 2;
+            } else if(state == 2 && !atLevel)
+                return (cursor.time - start) / 1000;
+        }
+        return 0;
+    }
+
+    /* Sets an output pin to value once, delayUs microseconds from now. The IO thread applies it */
+    public TimerWheel.Timer scheduleDigitalWrite(int pin, int value, long delayUs) {
+        return schedule(pin, System.nanoTime() + delayUs * 1000, 0,
+                (value == 0) ? TimerWheel.ACTION_LOW : TimerWheel.ACTION_HIGH);
+    }
+
+    /* Toggles an output pin every periodUs microseconds until the timer is cancelled */
+    public TimerWheel.Timer scheduleToggle(int pin, long periodUs) {
+        long period = Math.max(1, periodUs) * 1000;
+        return schedule(pin, System.nanoTime() + period, period, TimerWheel.ACTION_TOGGLE);
+    }
+
+    /* Fired timers, skipped periods and how late the IO thread applied them */
+    public TimerWheel.Stats timerStats() {
+        return timers.stats();
+    }
+
+    /* Input polls per second of the IO thread, measured over the last second */
+    public float getPollRate() {
+        return pollRate;
+    }
+
+    /* CPU time of the IO thread as a fraction of one core over the last second, -1 if unknown */
+    public float getIOCpuLoad() {
+        return ioCpuLoad;
+    }
+
+    private TimerWheel.Timer schedule(int pin, long deadline, long period, int action) {
+        if(pin < 0 || pin >= UsbIOService.VREG_BASE) {
+            Log.e(TAG, "schedule: pin out of range");
+            return null;
+        }
+        TimerWheel.Timer timer = timers.schedule(deadline, period, 1 << pin, action);
+        wakeIO();
+        return timer;
+    }
+
+    /*
+        Merges the levels read from the adapter into pins and records the edges of the input pins.
+        The input filter, if any, is applied first. Returns true if an input changed. IO thread only.
+    */
+    boolean mergeInputs(int levels, int inputs, long now) {
+        InputFilter f = filter;
+        if(f != null)
+            levels = f.apply(levels, inputs, now);
+        levels &= inputs;
+        if(levels == (lastLevels & inputs))
+            return false;
+        //Only input pins count as edges, outputs switching mode do not
+        edges.record(now, (lastLevels ^ levels) & inputs, levels);
+        updatePins(inputs, ~levels); //A set bit means the pin is low
+        lastLevels = levels;
+        return true;
+    }
+
+    /* Wakes the IO thread so pending outputs are written without waiting for the next poll */
+    void wakeIO() {
+        Thread t = ioWaiter;
+        if(t != null)
+            LockSupport.unpark(t);
+    }
+
+    void togglePins(int mask) {
+        int old;
+        do {
+            old = pins.get();
+        } while(mask != 0 && !pins.compareAndSet(old, old ^ mask));
+    }
+
+    /* Atomically replaces the bits in mask with bits, returns the previous value */
+    int updatePins(int mask, int bits) {
+        int old, val;
+        do {
+            old = pins.get();
+            val = (old & ~mask) | (bits & mask);
+        } while(!pins.compareAndSet(old, val));
+        return old;
+    }
+}
@@ -0,0 +1,32 @@
+package com.docvolt.usbcontrol;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+/*
+    Chip specific access to the GPIO lines of one USB adapter. Pins are numbered like the FT232R
+    pins (UsbIOService.PIN_TXD and following), chips without a line leave its bit out of pinMask().
+    Outputs work open collector: a pin is either pulled low or released.
+    A driver is only used by the IO thread of its adapter.
+*/
+interface PinDriver {
+    /* Puts the chip into GPIO mode, returns false if that failed */
+    boolean open(UsbDeviceConnection connection, UsbDevice device);
+
+    /* Pins this chip can use as GPIO */
+    int pinMask();
+
+    /* Pulls the pins in low to low and releases all others. Returns false on a transfer error */
+    boolean write(int low);
+
+    /* Returns the levels of all pins, a set bit means high, or -1 on a transfer error */
+    int read();
+
+    /* Waveform streaming, or null if the chip has none */
+    BitBangStream bitBang();
+
+    /* Pipelined input polling, or null if the chip or the Android version has none */
+    PinPipeline pipeline();
+
+    void close();
+}
@@ -0,0 +1,408 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.MAX_DEVICES;
+import static com.docvolt.usbcontrol.UsbIOService.VREG_BASE;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    TCP gateway to the pins for test rigs and other apps, see UsbIOService.startGateway(). One selector
+    thread serves all clients. The writes of all frames it reads in one round are collected in a batch
+    per adapter and applied as one port write, and the IO thread sends whatever the pins are once per
+    cycle, so many clients share one adapter without a USB transfer per request.
+
+    Frames in both directions: u16 length of what follows, u8 type, payload. Big endian.
+    Requests:
+      WRITE_PINS   device u8, count u8, count * (pin u16, value u8), virtual register pins included
+      WRITE_PORT   device u8, mask u32, values u32, like digitalWritePort()
+      READ_PINS    device u8, answered by PINS. Writes read before it are applied first
+      READ_ANALOG  channel u16, answered by ANALOG
+      SUBSCRIBE    device u8, mask u32, PIN_CHANGE is sent whenever a pin in mask changed, 0 ends it
+    Replies and pushes:
+      PINS         device u8, levels u32, bit n is digitalRead(n)
+      ANALOG       channel u16, value i32
+      PIN_CHANGE   device u8, changed u32, levels u32. Changes until it is sent are coalesced into it
+      ERROR        type u8 of the request that failed
+*/
+public final class PinGateway {
+    private static final String TAG = "pingateway";
+    public static final int DEFAULT_PORT = 5711;
+    static final int MAX_FRAME = 1024;
+    private static final int OUT_BUFFER_SIZE = 64 * 1024;
+
+    public static final int WRITE_PINS = 0x01;
+    public static final int WRITE_PORT = 0x02;
+    public static final int READ_PINS = 0x03;
+    public static final int READ_ANALOG = 0x04;
+    public static final int SUBSCRIBE = 0x05;
+    public static final int PINS = 0x83;
+    public static final int ANALOG = 0x84;
+    public static final int PIN_CHANGE = 0x85;
+    public static final int ERROR = 0xFF;
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private final AtomicBoolean mWakePending = new AtomicBoolean(false);
+    private volatile int mSubscribers = 0;
+    private volatile int mClientCount = 0;
+
+    // Selector thread only
+    private final ArrayList<Client> mClients = new ArrayList<>();
+    private final PinBank[] mBanks = new PinBank[MAX_DEVICES];
+    private int mBatched = 0; //Devices with an open batch
+
+    // Written by the selector thread
+    private volatile long mFrames = 0;
+    private volatile long mRounds = 0;
+
+    private static final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(4 * MAX_FRAME);
+        final ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+        final int[] subscribed = new int[MAX_DEVICES]; //Pin mask by device
+        final int[] sent = new int[MAX_DEVICES]; //Levels of the last PIN_CHANGE by device
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private PinGateway(Selector selector, ServerSocketChannel server) {
+        mSelector = selector;
+        mServer = server;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "pinGateway");
+    }
+
+    /* Listens on port, only for connections from this device if loopbackOnly. Returns null if that failed */
+    static PinGateway start(int port, boolean loopbackOnly) {
+        Selector selector = null;
+        ServerSocketChannel server = null;
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(loopbackOnly ? new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port)
+                    : new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            Log.e(TAG, "start: " + e.getMessage());
+            close(server);
+            close(selector);
+            return null;
+        }
+        PinGateway gateway = new PinGateway(selector, server);
+        gateway.mThread.start();
+        Log.d(TAG, "start: listening on port " + gateway.getPort());
+        return gateway;
+    }
+
+    /* Port the gateway listens on, useful when it was started on port 0 */
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    public int getClientCount() {
+        return mClientCount;
+    }
+
+    /* Frames handled and selector rounds, frames per round show how much was coalesced */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    public long getRounds() {
+        return mRounds;
+    }
+
+    /* Closes all connections, the thread ends shortly after */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    /* Called from notifyChange(), wakes the selector once to send PIN_CHANGE frames */
+    void pinsChanged() {
+        if(mSubscribers > 0 && mWakePending.compareAndSet(false, true))
+            mSelector.wakeup();
+    }
+
+    private void serve() {
+        while(mRunning) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "select: " + e.getMessage());
+                break;
+            }
+            mWakePending.set(false);
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if(!key.isValid())
+                    continue;
+                if(key.isAcceptable())
+                    accept();
+                else if(key.isReadable())
+                    read((Client) key.attachment());
+            }
+            commitBatches();
+            pushChanges();
+            for (int i = mClients.size() - 1; i >= 0; i--)
+                flush(mClients.get(i));
+            mRounds++;
+        }
+        for (int i = mClients.size() - 1; i >= 0; i--)
+            drop(mClients.get(i), null);
+        close(mServer);
+        close(mSelector);
+        Log.d(TAG, "stopped");
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = mServer.accept();
+            if(channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            Client client = new Client(channel, key);
+            key.attach(client);
+            mClients.add(client);
+            mClientCount = mClients.size();
+        } catch (IOException e) {
+            Log.e(TAG, "accept: " + e.getMessage());
+        }
+    }
+
+    private void read(Client client) {
+        try {
+            if(client.channel.read(client.in) < 0) {
+                drop(client, null);
+                return;
+            }
+        } catch (IOException e) {
+            drop(client, e.getMessage());
+            return;
+        }
+        ByteBuffer in = client.in;
+        in.flip();
+        while(in.remaining() >= 2) {
+            int length = in.getShort(in.position()) & 0xFFFF;
+            if(length == 0 || length > MAX_FRAME) {
+                drop(client, "bad frame length " + length);
+                return;
+            }
+            if(in.remaining() < 2 + length)
+                break;
+            int end = in.position() + 2 + length;
+            in.position(in.position() + 2);
+            int type = in.get() & 0xFF;
+            if(!handle(client, type, in, length - 1)) {
+                ByteBuffer out = reply(client, 2);
+                if(out != null)
+                    out.put((byte) ERROR).put((byte) type);
+            }
+            in.position(end);
+            mFrames++;
+            if(!client.channel.isOpen())
+                return;
+        }
+        in.compact();
+    }
+
+    /* Handles one request, its payload of length bytes starts at the position of in. Returns false if it is invalid */
+    private boolean handle(Client client, int type, ByteBuffer in, int length) {
+        switch (type) {
+            case WRITE_PINS: {
+                PinBank bank = (length >= 2) ? bank(in.get() & 0xFF) : null;
+                int count = (bank == null) ? 0 : in.get() & 0xFF;
+                if(bank == null || length != 2 + 3 * count)
+                    return false;
+                batch(bank);
+                for (int i = 0; i < count; i++) {
+                    int pin = in.getShort() & 0xFFFF;
+                    int value = in.get();
+                    if(pin < VREG_BASE)
+                        bank.digitalWrite(pin, value);
+                    else
+                        UsbIOService.digitalWrite(pin, value);
+                }
+                return true;
+            }
+            case WRITE_PORT: {
+                PinBank bank = (length == 9) ? bank(in.get() & 0xFF) : null;
+                if(bank == null)
+                    return false;
+                batch(bank);
+                int mask = in.getInt();
+                bank.digitalWritePort(mask, in.getInt());
+                return true;
+            }
+            case READ_PINS: {
+                PinBank bank = (length == 1) ? bank(in.get() & 0xFF) : null;
+                if(bank == null)
+                    return false;
+                commitBatches(); //Answer with the writes read before applied
+                ByteBuffer out = reply(client, 6);
+                if(out != null)
+                    out.put((byte) PINS).put((byte) bank.device).putInt(~bank.pins.get());
+                return true;
+            }
+            case READ_ANALOG: {
+                if(length != 2)
+                    return false;
+                int channel = in.getShort() & 0xFFFF;
+                ByteBuffer out = reply(client, 7);
+                if(out != null)
+                    out.put((byte) ANALOG).putShort((short) channel).putInt(UsbIOService.analogRead(channel));
+                return true;
+            }
+            case SUBSCRIBE: {
+                PinBank bank = (length == 5) ? bank(in.get() & 0xFF) : null;
+                if(bank == null)
+                    return false;
+                client.subscribed[bank.device] = in.getInt();
+                client.sent[bank.device] = ~bank.pins.get();
+                countSubscribers();
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /* Space for a frame with length bytes after the length field, null if the client cannot keep up */
+    private ByteBuffer reply(Client client, int length) {
+        if(!client.channel.isOpen())
+            return null;
+        if(client.out.remaining() < 2 + length) {
+            drop(client, "client does not read its replies");
+            return null;
+        }
+        return client.out.putShort((short) length);
+    }
+
+    /* Sends the pins that changed since the last PIN_CHANGE, a client that is behind gets them later */
+    private void pushChanges() {
+        if(mSubscribers == 0)
+            return;
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            for (int device = 0; device < MAX_DEVICES; device++) {
+                int mask = client.subscribed[device];
+                if(mask == 0)
+                    continue;
+                int levels = ~bank(device).pins.get();
+                int changed = (levels ^ client.sent[device]) & mask;
+                if(changed == 0 || client.out.remaining() < 12)
+                    continue;
+                client.out.putShort((short) 10).put((byte) PIN_CHANGE).put((byte) device).putInt(changed).putInt(levels);
+                client.sent[device] = levels;
+            }
+        }
+    }
+
+    private void flush(Client client) {
+        if(client.out.position() == 0 || !client.channel.isOpen())
+            return;
+        client.out.flip();
+        try {
+            client.channel.write(client.out);
+        } catch (IOException e) {
+            drop(client, e.getMessage());
+            return;
+        }
+        client.out.compact();
+        int ops = (client.out.position() > 0) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if(client.key.isValid() && client.key.interestOps() != ops)
+            client.key.interestOps(ops);
+    }
+
+    private void batch(PinBank bank) {
+        if((mBatched & (1 << bank.device)) == 0) {
+            mBatched |= 1 << bank.device;
+            bank.beginBatch();
+        }
+    }
+
+    private void commitBatches() {
+        while(mBatched != 0) {
+            int device = Integer.numberOfTrailingZeros(mBatched);
+            mBatched &= mBatched - 1;
+            mBanks[device].commit();
+        }
+    }
+
+    private PinBank bank(int device) {
+        if(device >= MAX_DEVICES)
+            return null;
+        if(mBanks[device] == null)
+            mBanks[device] = UsbIOService.device(device);
+        return mBanks[device];
+    }
+
+    private void countSubscribers() {
+        int subscribers = 0;
+        for (Client client : mClients)
+            for (int mask : client.subscribed)
+                if(mask != 0) {
+                    subscribers++;
+                    break;
+                }
+        mSubscribers = subscribers;
+    }
+
+    private void drop(Client client, String reason) {
+        if(reason != null)
+            Log.e(TAG, "dropping client: " + reason);
+        client.key.cancel();
+        close(client.channel);
+        mClients.remove(client);
+        mClientCount = mClients.size();
+        countSubscribers();
+    }
+
+    private static void close(Channel channel) {
+        if(channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    //Selector is no Closeable before API 19
+    private static void close(Selector selector) {
+        if(selector == null)
+            return;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
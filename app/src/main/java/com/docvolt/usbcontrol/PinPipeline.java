@@ -0,0 +1,31 @@
+package com.docvolt.usbcontrol;
+
+/*
+    Input polling with several USB requests in flight, see UsbIOService.setAsyncIO(). The IO thread
+    gets the newest levels as soon as one request completes instead of waiting for a full round trip
+    per read, and output writes go over the bus while the polls are queued.
+    A pipeline is only used by the IO thread of its adapter, under the bank's usbLock.
+*/
+interface PinPipeline {
+    /* Queues depth polls. Returns false if the requests could not be queued */
+    boolean start(int depth);
+
+    /*
+        Levels of the newest sample, a set bit means high. Waits up to timeoutMs for a request to
+        complete. After a timeout the pipeline is restarted and the levels are read directly once.
+        Returns -1 on a transfer error.
+    */
+    int read(int timeoutMs);
+
+    /* Polls kept in flight, 0 while stopped */
+    int depth();
+
+    /* Requests queued and not completed yet */
+    int inFlight();
+
+    /* Reads that timed out and were recovered */
+    long timeouts();
+
+    /* Cancels the requests in flight and waits for them */
+    void stop();
+}
@@ -0,0 +1,247 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+import static com.docvolt.usbcontrol.UsbIOService.PIN_NAMES;
+import static com.docvolt.usbcontrol.UsbIOService.VREG_BASE;
+import static com.docvolt.usbcontrol.UsbIOService.VREG_PINS;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+    Rule table that the IO thread evaluates right after every read, see PinBank.setPinRules(). Outputs
+    the rules change go out in the same loop iteration, without a hop to a sketch thread.
+    A rule sets one target pin, either from an expression or on an edge:
+      DTR = !CTS & V9            DTR is high while CTS is low and register pin VREG_BASE + 9 is high
+      RTS = DSR | !DCD & RI      sum of products, & binds tighter than |
+      RTS = HIGH ON RISING DCD   sets RTS on a rising edge of DCD, LOW and TOGGLE work alike
+    Pins are FT232R names (TXD, RXD, ...) or numbers 0-31 of the bank, its virtual pins are 8-31.
+    Vn is the register pin VREG_BASE + n, n from 0 to VREG_PINS - 1, and never a pin of the bank.
+    A table may use up to 32 register pins. NOT, AND and OR can be written instead of !, & and |. Rules are evaluated in order, a rule sees the targets of the
+    rules before it. Physical targets are only driven while they are outputs.
+    Each rule is compiled to masks: a product is true if (levels & high) == high and (levels & low) == 0.
+    The levels have the bank's pins in bits 0-31 and the register pins of the table from bit VREG_BASE on.
+*/
+public final class PinRules {
+    private static final String TAG = "pinrules";
+    private static final int EXPRESSION = 0, RISING = 1, FALLING = 2, CHANGE = 3;
+    private static final int SET_HIGH = 0, SET_LOW = 1, TOGGLE = 2;
+    private static final int MAX_REGISTER_PINS = 64 - VREG_BASE;
+
+    // One entry per rule
+    private final int[] mKind;
+    private final long[] mTarget; //Bit of the target pin
+    private final int[] mFirst; //Expression: first product, edge: bit number of the source pin
+    private final int[] mEnd; //Expression: end of its products, edge: action
+    // Products of all expressions
+    private final long[] mHigh;
+    private final long[] mLow;
+    private final long mTargets;
+    private final int[] mRegisterPins; //Register pin of bit VREG_BASE + i, minus VREG_BASE
+
+    // IO thread only
+    private long mLast;
+    private boolean mPrimed = false;
+    private final LatencyHistogram mEvaluation = new LatencyHistogram();
+    private final LatencyHistogram mReaction = new LatencyHistogram();
+
+    /* Evaluation cost and reaction latency of a rule table */
+    public static final class Stats {
+        public final LatencyHistogram.Snapshot evaluation; //Evaluating all rules once
+        // From the previous read, the last moment an input change could have gone unseen, until the
+        // write of the outputs it caused ended. maxNanos is the worst case
+        public final LatencyHistogram.Snapshot reaction;
+
+        Stats(LatencyHistogram.Snapshot evaluation, LatencyHistogram.Snapshot reaction) {
+            this.evaluation = evaluation;
+            this.reaction = reaction;
+        }
+    }
+
+    private PinRules(int[] kind, long[] target, int[] first, int[] end, long[] high, long[] low, int[] registerPins) {
+        mKind = kind;
+        mTarget = target;
+        mFirst = first;
+        mEnd = end;
+        mHigh = high;
+        mLow = low;
+        mRegisterPins = registerPins;
+        long targets = 0;
+        for (long bit : target)
+            targets |= bit;
+        mTargets = targets;
+    }
+
+    /* Compiles the rules, returns null and logs the rule if one cannot be parsed */
+    static PinRules compile(String... rules) {
+        int n = rules.length;
+        int[] kind = new int[n], first = new int[n], end = new int[n];
+        long[] target = new long[n];
+        ArrayList<long[]> products = new ArrayList<>();
+        ArrayList<Integer> registerPins = new ArrayList<>();
+        for (int r = 0; r < n; r++) {
+            String[] t = tokenize(rules[r]);
+            int pin = (t.length > 2 && t[1].equals("=")) ? bitOf(pinOf(t[0]), registerPins) : -1;
+            if(pin < 0) {
+                Log.e(TAG, "compile: expected <pin> = ... in \"" + rules[r] + "\"");
+                return null;
+            }
+            target[r] = 1L << pin;
+            if(t.length == 6 && t[3].equals("ON")) {
+                kind[r] = t[4].equals("RISING") ? RISING : t[4].equals("FALLING") ? FALLING : t[4].equals("CHANGE") ? CHANGE : -1;
+                end[r] = t[2].equals("HIGH") ? SET_HIGH : t[2].equals("LOW") ? SET_LOW : t[2].equals("TOGGLE") ? TOGGLE : -1;
+                int source = bitOf(pinOf(t[5]), registerPins);
+                if(kind[r] < 0 || end[r] < 0 || source < 0) {
+                    Log.e(TAG, "compile: expected <pin> = HIGH|LOW|TOGGLE ON RISING|FALLING|CHANGE <pin> in \"" + rules[r] + "\"");
+                    return null;
+                }
+                first[r] = source;
+                continue;
+            }
+            kind[r] = EXPRESSION;
+            first[r] = products.size();
+            long high = 0, low = 0;
+            boolean expectPin = true, invert = false;
+            for (int i = 2; i < t.length; i++) {
+                String token = t[i];
+                if(expectPin && token.equals("!")) {
+                    invert = !invert;
+                } else if(expectPin) {
+                    int source = bitOf(pinOf(token), registerPins);
+                    if(source < 0)
+                        break;
+                    if(invert)
+                        low |= 1L << source;
+                    else
+                        high |= 1L << source;
+                    invert = false;
+                    expectPin = false;
+                } else if(token.equals("&")) {
+                    expectPin = true;
+                } else if(token.equals("|")) {
+                    products.add(new long[]{high, low});
+                    high = low = 0;
+                    expectPin = true;
+                } else {
+                    break;
+                }
+                if(i == t.length - 1 && !expectPin) {
+                    products.add(new long[]{high, low});
+                    end[r] = products.size();
+                }
+            }
+            if(end[r] == 0) {
+                Log.e(TAG, "compile: cannot parse the expression in \"" + rules[r] + "\"");
+                return null;
+            }
+        }
+        long[] high = new long[products.size()], low = new long[products.size()];
+        for (int p = 0; p < high.length; p++) {
+            high[p] = products.get(p)[0];
+            low[p] = products.get(p)[1];
+        }
+        int[] registers = new int[registerPins.size()];
+        for (int i = 0; i < registers.length; i++)
+            registers[i] = registerPins.get(i);
+        return new PinRules(kind, target, first, end, high, low, registers);
+    }
+
+    /*
+        Evaluates the rules on the pins of the bank and the register pins and applies the targets that
+        changed. Returns true if a pin changed. IO thread only.
+    */
+    boolean apply(PinBank bank, RegisterFile registers) {
+        long start = System.nanoTime();
+        int pins = bank.pins.get();
+        long levels = ~pins & 0xFFFFFFFFL; //Bit n is the level of pin n
+        for (int i = 0; i < mRegisterPins.length; i++)
+            if(registers.readDigital(mRegisterPins[i]))
+                levels |= 1L << (VREG_BASE + i);
+        long read = levels;
+        long prev = mPrimed ? mLast : levels;
+        long rising = ~prev & levels;
+        long falling = prev & ~levels;
+        for (int r = 0; r < mKind.length; r++) {
+            long bit = mTarget[r];
+            switch (mKind[r]) {
+                case EXPRESSION:
+                    boolean on = false;
+                    for (int p = mFirst[r]; p < mEnd[r] && !on; p++)
+                        on = (levels & mHigh[p]) == mHigh[p] && (levels & mLow[p]) == 0;
+                    levels = on ? levels | bit : levels & ~bit;
+                    break;
+                default:
+                    long edges = (mKind[r] == RISING) ? rising : (mKind[r] == FALLING) ? falling : rising | falling;
+                    if(((edges >>> mFirst[r]) & 1) != 0)
+                        levels = (mEnd[r] == SET_HIGH) ? levels | bit : (mEnd[r] == SET_LOW) ? levels & ~bit : levels ^ bit;
+                    break;
+            }
+        }
+        int changed = (int) ((levels ^ read) & mTargets) & bank.mode; //Virtual pins are always outputs
+        if(changed != 0)
+            bank.updatePins(changed, ~(int) levels);
+        boolean registerChanged = false;
+        long registerTargets = ((levels ^ read) & mTargets) >>> VREG_BASE;
+        for (int i = 0; registerTargets != 0; i++, registerTargets >>>= 1)
+            if((registerTargets & 1) != 0)
+                registerChanged |= registers.writeDigital(mRegisterPins[i], ((levels >>> (VREG_BASE + i)) & 1) != 0);
+        mLast = levels;
+        mPrimed = true;
+        mEvaluation.record(System.nanoTime() - start);
+        return changed != 0 || registerChanged;
+    }
+
+    /* IO thread only */
+    void recordReaction(long nanos) {
+        mReaction.record(nanos);
+    }
+
+    public Stats stats() {
+        return new Stats(mEvaluation.snapshot(), mReaction.snapshot());
+    }
+
+    private static String[] tokenize(String rule) {
+        String[] tokens = rule.toUpperCase(Locale.US)
+                .replace("=", " = ").replace("!", " ! ").replace("&", " & ").replace("|", " | ")
+                .trim().split("\\s+");
+        for (int i = 0; i < tokens.length; i++)
+            tokens[i] = tokens[i].equals("NOT") ? "!" : tokens[i].equals("AND") ? "&" : tokens[i].equals("OR") ? "|" : tokens[i];
+        return tokens;
+    }
+
+    /* Pin number of a name, from VREG_BASE on for register pins, -1 if it is none */
+    private static int pinOf(String name) {
+        for (int pin = 0; pin <= MAX_FT_PIN_NUMBER; pin++)
+            if(PIN_NAMES[pin].equals(name))
+                return pin;
+        boolean register = name.startsWith("V");
+        String digits = register ? name.substring(1) : name;
+        if(digits.isEmpty() || digits.length() > 4)
+            return -1;
+        for (int i = 0; i < digits.length(); i++)
+            if(digits.charAt(i) < '0' || digits.charAt(i) > '9')
+                return -1; //No signs, V-1 is no pin
+        int pin = Integer.parseInt(digits);
+        if(register)
+            return (pin < VREG_PINS) ? VREG_BASE + pin : -1;
+        return (pin < VREG_BASE) ? pin : -1;
+    }
+
+    /* Bit of a pin in the levels, register pins get the next free bit from VREG_BASE on */
+    private static int bitOf(int pin, ArrayList<Integer> registerPins) {
+        if(pin < VREG_BASE)
+            return pin;
+        int i = registerPins.indexOf(pin - VREG_BASE);
+        if(i < 0) {
+            if(registerPins.size() == MAX_REGISTER_PINS) {
+                Log.e(TAG, "compile: more than " + MAX_REGISTER_PINS + " register pins");
+                return -1;
+            }
+            i = registerPins.size();
+            registerPins.add(pin - VREG_BASE);
+        }
+        return VREG_BASE + i;
+    }
+}
@@ -0,0 +1,151 @@
+package com.docvolt.usbcontrol;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+    Pin modes, pin levels, virtual registers and analog channels saved across app restarts, see
+    UsbIOService.saveState(). Only banks and registers that were used are written, so a typical
+    snapshot is a few dozen bytes. The file is written next to itself and renamed, a crash while
+    saving leaves the previous snapshot.
+
+    File format, big endian:
+      int   magic "PSNP"
+      byte  version
+      byte  banks, then for each: byte device, int mode, int pins
+      short analog channels, then for each: short channel, int value
+      short register words, then for each: short word, long bits of 64 virtual register pins
+*/
+final class PinSnapshot {
+    private static final String TAG = "pinsnapshot";
+    private static final int MAGIC = 0x50534E50; //"PSNP"
+    private static final int VERSION = 1;
+
+    private PinSnapshot() {
+    }
+
+    /* Returns false if the file could not be written */
+    static boolean save(File file, PinBank[] banks, RegisterFile registers) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            int used = 0;
+            for (PinBank bank : banks)
+                if(bank != null)
+                    used++;
+            out.writeByte(used);
+            for (PinBank bank : banks) {
+                if(bank == null)
+                    continue;
+                out.writeByte(bank.device);
+                out.writeInt(bank.mode);
+                out.writeInt(bank.pins.get());
+            }
+            int channels = 0;
+            for (int channel = 0; channel < registers.analogChannels(); channel++)
+                if(registers.analogSeq(channel) != 0)
+                    channels++;
+            out.writeShort(channels);
+            for (int channel = 0; channel < registers.analogChannels(); channel++) {
+                if(registers.analogSeq(channel) != 0) {
+                    out.writeShort(channel);
+                    out.writeInt(registers.readAnalog(channel));
+                }
+            }
+            int words = (registers.digitalPins() + 63) >>> 6;
+            int set = 0;
+            for (int word = 0; word < words; word++)
+                if(registers.readDigitalWord(word) != 0)
+                    set++;
+            out.writeShort(set);
+            for (int word = 0; word < words; word++) {
+                long bits = registers.readDigitalWord(word);
+                if(bits != 0) {
+                    out.writeShort(word);
+                    out.writeLong(bits);
+                }
+            }
+            out.close();
+            out = null;
+            if(!tmp.renameTo(file)) {
+                Log.e(TAG, "save: could not replace " + file);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "save: " + e.getMessage());
+            return false;
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /* Applies a snapshot to the banks of UsbIOService.device() and the registers. Returns false if there was none */
+    static boolean restore(File file, RegisterFile registers) {
+        if(!file.exists())
+            return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(in.readInt() != MAGIC || in.readByte() != VERSION) {
+                Log.e(TAG, "restore: not a snapshot");
+                return false;
+            }
+            int banks = in.readByte() & 0xFF;
+            for (int i = 0; i < banks; i++) {
+                int device = in.readByte() & 0xFF;
+                int mode = in.readInt();
+                int pins = in.readInt();
+                PinBank bank = UsbIOService.device(device);
+                if(bank == null)
+                    continue;
+                bank.mode = mode;
+                bank.pins.set(pins);
+            }
+            int channels = in.readShort() & 0xFFFF;
+            for (int i = 0; i < channels; i++) {
+                int channel = in.readShort() & 0xFFFF;
+                int value = in.readInt();
+                if(channel < registers.analogChannels())
+                    registers.writeAnalog(channel, value);
+            }
+            int words = in.readShort() & 0xFFFF;
+            for (int i = 0; i < words; i++) {
+                int word = in.readShort() & 0xFFFF;
+                long bits = in.readLong();
+                for (int bit = 0; bit < 64; bit++) {
+                    int pin = (word << 6) + bit;
+                    if((bits & (1L << bit)) != 0 && pin < registers.digitalPins())
+                        registers.writeDigital(pin, true);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "restore: " + e.getMessage());
+            return false;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.docvolt.usbcontrol;
+
+/*
+    Decides how long the IO thread waits between two polls of the FT232R inputs.
+    The latency budget is the longest time an input change may go unnoticed. Output changes
+    wake the IO thread immediately, so they do not depend on the policy.
+    A policy keeps state. The one given to UsbIOService.setPollPolicy() is a prototype, every IO
+    thread polls with its own copy(), so a change on one adapter does not reset another one's wait.
+*/
+public abstract class PollPolicy {
+    private final long mBudgetNanos;
+
+    PollPolicy(long budgetNanos) {
+        mBudgetNanos = budgetNanos;
+    }
+
+    /* Called after every poll. Returns the time in ns to wait before the next one. IO thread only */
+    abstract long nextDelayNanos(boolean changed, long now);
+
+    /* Same policy with fresh state */
+    abstract PollPolicy copy();
+
+    public long getLatencyBudgetNanos() {
+        return mBudgetNanos;
+    }
+
+    /* Polls as fast as the USB transfers allow, like the original IO loop */
+    public static PollPolicy busy() {
+        return new PollPolicy(0) {
+            @Override
+            long nextDelayNanos(boolean changed, long now) {
+                return 0;
+            }
+
+            @Override
+            PollPolicy copy() {
+                return this; //No state
+            }
+
+            @Override
+            public String toString() {
+                return "busy";
+            }
+        };
+    }
+
+    /* Polls at a fixed rate, the period is kept even if a transfer takes longer now and then */
+    public static PollPolicy fixedRate(final int hz) {
+        final long period = 1000000000L / Math.max(1, hz);
+        return new PollPolicy(period) {
+            private long next = 0;
+
+            @Override
+            long nextDelayNanos(boolean changed, long now) {
+                next += period;
+                if(next - now < 0 || next - now > period)
+                    next = now + period; //Fell behind or first call, restart the schedule
+                return next - now;
+            }
+
+            @Override
+            PollPolicy copy() {
+                return fixedRate(hz);
+            }
+
+            @Override
+            public String toString() {
+                return "fixedRate(" + hz + " Hz)";
+            }
+        };
+    }
+
+    /* Polls at full speed after a change and doubles the wait on every quiet poll up to the budget */
+    public static PollPolicy adaptive(final int latencyBudgetMs) {
+        final long budget = latencyBudgetMs * 1000000L;
+        return new PollPolicy(budget) {
+            private static final long MIN_DELAY = 100000; //100 us
+            private long delay = 0;
+
+            @Override
+            long nextDelayNanos(boolean changed, long now) {
+                if(changed)
+                    delay = 0;
+                else
+                    delay = Math.min(budget, Math.max(MIN_DELAY, delay * 2));
+                return delay;
+            }
+
+            @Override
+            PollPolicy copy() {
+                return adaptive(latencyBudgetMs);
+            }
+
+            @Override
+            public String toString() {
+                return "adaptive(" + latencyBudgetMs + " ms)";
+            }
+        };
+    }
+
+    /* Polls at full speed for burstMs after a change, otherwise once per latency budget */
+    public static PollPolicy burst(final int burstMs, final int latencyBudgetMs) {
+        final long budget = latencyBudgetMs * 1000000L;
+        final long burst = burstMs * 1000000L;
+        return new PollPolicy(budget) {
+            private long lastChange = 0;
+            private boolean bursting = false;
+
+            @Override
+            long nextDelayNanos(boolean changed, long now) {
+                if(changed) {
+                    lastChange = now;
+                    bursting = true;
+                }
+                if(bursting && now - lastChange < burst)
+                    return 0;
+                bursting = false;
+                return budget;
+            }
+
+            @Override
+            PollPolicy copy() {
+                return burst(burstMs, latencyBudgetMs);
+            }
+
+            @Override
+            public String toString() {
+                return "burst(" + burstMs + " ms, " + latencyBudgetMs + " ms)";
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package com.docvolt.usbcontrol;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Fixed size register file for analog channels and virtual digital pins, shared between the UI and
+    the sketch without boxing or locks. Every register has a change counter that is incremented on
+    each write that changes its value, so readers can detect updates by comparing counters.
+    A counter of 0 means the register was never written.
+*/
+final class RegisterFile {
+    private final AtomicIntegerArray mAnalog;
+    private final AtomicIntegerArray mAnalogSeq;
+    private final AtomicLongArray mDigital; //One bit per virtual pin
+    private final AtomicIntegerArray mDigitalSeq;
+
+    RegisterFile(int analogChannels, int digitalPins) {
+        mAnalog = new AtomicIntegerArray(analogChannels);
+        mAnalogSeq = new AtomicIntegerArray(analogChannels);
+        mDigital = new AtomicLongArray((digitalPins + 63) >>> 6);
+        mDigitalSeq = new AtomicIntegerArray(digitalPins);
+    }
+
+    int analogChannels() {
+        return mAnalog.length();
+    }
+
+    int digitalPins() {
+        return mDigitalSeq.length();
+    }
+
+    /* Returns true if the value of the channel changed */
+    boolean writeAnalog(int channel, int value) {
+        if(mAnalog.getAndSet(channel, value) == value && mAnalogSeq.get(channel) != 0)
+            return false;
+        mAnalogSeq.incrementAndGet(channel);
+        return true;
+    }
+
+    int readAnalog(int channel) {
+        return mAnalog.get(channel);
+    }
+
+    int analogSeq(int channel) {
+        return mAnalogSeq.get(channel);
+    }
+
+    /* Returns true if the value of the pin changed */
+    boolean writeDigital(int pin, boolean value) {
+        int word = pin >>> 6;
+        long bit = 1L << pin;
+        long old, val;
+        do {
+            old = mDigital.get(word);
+            val = value ? old | bit : old & ~bit;
+            if(val == old)
+                return false;
+        } while(!mDigital.compareAndSet(word, old, val));
+        mDigitalSeq.incrementAndGet(pin);
+        return true;
+    }
+
+    boolean readDigital(int pin) {
+        return (mDigital.get(pin >>> 6) & (1L << pin)) != 0;
+    }
+
+    /* Virtual pins 64 * word to 64 * word + 63, bit n is pin 64 * word + n */
+    long readDigitalWord(int word) {
+        return mDigital.get(word);
+    }
+
+    int digitalSeq(int pin) {
+        return mDigitalSeq.get(pin);
+    }
+}
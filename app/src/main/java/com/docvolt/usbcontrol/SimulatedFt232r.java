@@ -0,0 +1,217 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    In-process FT232R for running the IO thread, the sketch and the UI callbacks without an adapter,
+    see UsbIOService.openSimulator(). It models the bit-bang direction register of the open collector
+    mode, levels driven from outside, wires between pins and the latency of a USB transfer.
+    Released pins are pulled up like on the real chip. Wired pins form one net that is low if any of
+    them is pulled low.
+    Its pipeline models queued polls: each completes one transfer latency after it was queued, and
+    takes the levels at that moment.
+    setConnected(false) makes every transfer fail like an unplugged adapter.
+*/
+public final class SimulatedFt232r implements PinDriver {
+    private static final String TAG = "simulatedft232r";
+
+    private volatile int mDirection = 0; //Bit-bang direction mask, the data latch stays low
+    private int mExternal = 0xFF; //Levels driven from outside, 1 where nothing is connected
+    private final int[] mNets = new int[MAX_FT_PIN_NUMBER + 1]; //Pins wired to each pin, itself included
+    private volatile long mLatencyNs = 0;
+    private volatile long mJitterNs = 0;
+    private final Random mRandom = new Random();
+    private volatile long mWrites = 0;
+    private volatile long mReads = 0;
+    private volatile boolean mConnected = true;
+    private final Pipeline mPipeline = new Pipeline();
+
+    public SimulatedFt232r() {
+        for (int pin = 0; pin <= MAX_FT_PIN_NUMBER; pin++)
+            mNets[pin] = 1 << pin;
+    }
+
+    /* Every transfer takes latencyUs plus a random extra of up to jitterUs */
+    public void setLatency(long latencyUs, long jitterUs) {
+        mLatencyNs = latencyUs * 1000;
+        mJitterNs = jitterUs * 1000;
+    }
+
+    /* Unplugs or plugs the adapter back in, the levels of the pins stay */
+    public void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    /* Drives a pin from outside, 0 pulls it low, 1 leaves it to the pull-up */
+    public synchronized void setInput(int pin, int level) {
+        if (!validPin("setInput", pin))
+            return;
+        mExternal = (level == 0) ? mExternal & ~(1 << pin) : mExternal | (1 << pin);
+    }
+
+    /* Connects two pins with a wire, e.g. an output to an input for loopback tests */
+    public synchronized void wire(int pinA, int pinB) {
+        if (!validPin("wire", pinA) || !validPin("wire", pinB))
+            return;
+        int net = mNets[pinA] | mNets[pinB];
+        for (int pin = 0; pin <= MAX_FT_PIN_NUMBER; pin++)
+            if ((net & (1 << pin)) != 0)
+                mNets[pin] = net;
+    }
+
+    /* Removes all wires */
+    public synchronized void unwireAll() {
+        for (int pin = 0; pin <= MAX_FT_PIN_NUMBER; pin++)
+            mNets[pin] = 1 << pin;
+    }
+
+    /* Levels of all pins as a read would return them, a set bit means high */
+    public synchronized int levels() {
+        int own = ~mDirection & mExternal & 0xFF; //Pins in the direction mask are pulled low
+        int levels = own;
+        for (int pin = 0; pin <= MAX_FT_PIN_NUMBER; pin++)
+            if ((mNets[pin] & ~own) != 0)
+                levels &= ~(1 << pin);
+        return levels;
+    }
+
+    public long getWrites() {
+        return mWrites;
+    }
+
+    public long getReads() {
+        return mReads;
+    }
+
+    @Override
+    public boolean open(UsbDeviceConnection connection, UsbDevice device) {
+        return true;
+    }
+
+    @Override
+    public int pinMask() {
+        return 0xFF;
+    }
+
+    @Override
+    public boolean write(int low) {
+        transfer();
+        if (!mConnected)
+            return false;
+        mDirection = low & 0xFF;
+        mWrites++;
+        return true;
+    }
+
+    @Override
+    public int read() {
+        transfer();
+        if (!mConnected)
+            return -1;
+        mReads++;
+        return levels();
+    }
+
+    @Override
+    public BitBangStream bitBang() {
+        return null;
+    }
+
+    @Override
+    public PinPipeline pipeline() {
+        return mPipeline;
+    }
+
+    @Override
+    public void close() {
+        mPipeline.stop();
+    }
+
+    /* Waits like a USB round trip would */
+    private void transfer() {
+        long delay = delay();
+        if (delay > 0)
+            LockSupport.parkNanos(delay);
+    }
+
+    private long delay() {
+        long delay = mLatencyNs;
+        if (mJitterNs > 0)
+            delay += (long) (mRandom.nextDouble() * mJitterNs);
+        return delay;
+    }
+
+    private final class Pipeline implements PinPipeline {
+        private final long[] mDue = new long[FtdiPipeline.MAX_DEPTH]; //Completion time of each poll
+        private int mDepth = 0;
+        private volatile long mTimeouts = 0;
+
+        @Override
+        public boolean start(int depth) {
+            depth = Math.max(1, Math.min(FtdiPipeline.MAX_DEPTH, depth));
+            long now = System.nanoTime();
+            for (int i = 0; i < depth; i++)
+                mDue[i] = now + delay();
+            mDepth = depth;
+            return true;
+        }
+
+        @Override
+        public int read(int timeoutMs) {
+            int next = 0;
+            for (int i = 1; i < mDepth; i++)
+                if (mDue[i] - mDue[next] < 0)
+                    next = i;
+            long wait = mDue[next] - System.nanoTime();
+            if (wait > timeoutMs * 1000000L) {
+                LockSupport.parkNanos(timeoutMs * 1000000L);
+                mTimeouts++;
+                start(mDepth);
+                return SimulatedFt232r.this.read();
+            }
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            if (!mConnected)
+                return -1;
+            mReads++;
+            int levels = levels();
+            mDue[next] = System.nanoTime() + delay();
+            return levels;
+        }
+
+        @Override
+        public int depth() {
+            return mDepth;
+        }
+
+        @Override
+        public int inFlight() {
+            return mDepth;
+        }
+
+        @Override
+        public long timeouts() {
+            return mTimeouts;
+        }
+
+        @Override
+        public void stop() {
+            mDepth = 0;
+        }
+    }
+
+    private static boolean validPin(String function, int pin) {
+        if (pin < 0 || pin > MAX_FT_PIN_NUMBER) {
+            Log.e(TAG, function + ": pin out of range");
+            return false;
+        }
+        return true;
+    }
+}
@@ -4,19 +4,21 @@ import static com.docvolt.usbcontrol.UsbIOService.*;
 
 import android.util.Log;
 
-public class Sketch {
+public class Sketch extends ArduinoSketch {
     private final String TAG = "usbsketch";
     private final byte[] mOutPins = {PIN_TXD, PIN_DTR, PIN_RTS, PIN_RXD};
     private final int MAX_DELAY = 250;
-    public final static int VPORT_ANALOG = 0;
+    public final static int VPORT_ANALOG = VPIN_BASE; //Channels 0-7 would drive PWM on the FT232R pins
 
-    void setup() {
+    @Override
+    public void setup() {
         for (byte mOutputPin : mOutPins) {
             pinMode(mOutputPin, OUTPUT);
         }
     }
 
-    void loop() {
+    @Override
+    public void loop() {
         for (byte outPin : mOutPins) {
             int delay = MAX_DELAY - analogRead(VPORT_ANALOG);
             if(digitalRead(outPin + VPIN_BASE) == 1)            {
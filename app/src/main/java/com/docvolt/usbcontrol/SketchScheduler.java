@@ -0,0 +1,334 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.MAX_FT_PIN_NUMBER;
+import static com.docvolt.usbcontrol.UsbIOService.VPIN_BASE;
+import static com.docvolt.usbcontrol.UsbIOService.VREG_BASE;
+import static com.docvolt.usbcontrol.UsbIOService.VREG_PINS;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Runs several sketches as cooperative tasks. Every sketch has its own thread, but only as many
+    as there are slots run at the same time. A sketch gives up its slot in delay(), waitForPin() and
+    when its loop() neither waited nor changed anything, so an idle sketch is a parked thread and
+    costs no CPU. A sketch that loops without waiting hands its slot over after every loop() while
+    others are queued for one.
+*/
+public final class SketchScheduler {
+    private static final String TAG = "sketchscheduler";
+    private static final long STATS_WINDOW_NS = 1000000000;
+    private static final long STOP_TIMEOUT_MS = 2000; //For the loop() of a stopped runner to return
+
+    // Runners of all schedulers, notifyChange() wakes the idle ones. Replaced as a whole on change
+    private static volatile Runner[] mRunners = new Runner[0];
+
+    private final Semaphore mSlots;
+    private final ArrayList<Task> mTasks = new ArrayList<>(); //Guarded by this
+    private boolean mStarted = false;
+
+    /* Loop and CPU accounting of one sketch */
+    public static final class Stats {
+        public final long loops;
+        public final float loopRate; //loop() calls per second over the last second it ran
+        public final long cpuNanos; //CPU time of the sketch's thread, -1 if unknown
+        public final float cpuLoad; //Fraction of one core over the last second it ran, -1 if unknown
+
+        Stats(long loops, float loopRate, long cpuNanos, float cpuLoad) {
+            this.loops = loops;
+            this.loopRate = loopRate;
+            this.cpuNanos = cpuNanos;
+            this.cpuLoad = cpuLoad;
+        }
+    }
+
+    /* A sketch added to the scheduler with the physical pins it owns and its virtual pin range */
+    public final class Task {
+        final ArduinoSketch sketch;
+        final int pinMask;
+        final int vpinFirst;
+        final int vpinCount;
+        final LatencyHistogram period = new LatencyHistogram(); //Start to start of loop() while it runs
+        final LatencyHistogram jitter = new LatencyHistogram(); //Change of the period from one loop() to the next
+        private Runner mRunner = null; //Guarded by the scheduler
+
+        // Written by the sketch's thread
+        volatile long loops = 0;
+        volatile float loopRate = 0;
+        volatile long cpuNanos = 0;
+        volatile float cpuLoad = 0;
+
+        Task(ArduinoSketch sketch, int pinMask, int vpinFirst, int vpinCount) {
+            this.sketch = sketch;
+            this.pinMask = pinMask;
+            this.vpinFirst = vpinFirst;
+            this.vpinCount = vpinCount;
+        }
+
+        public String getName() {
+            return sketch.getClass().getSimpleName();
+        }
+
+        public Stats stats() {
+            return new Stats(loops, loopRate, cpuNanos, cpuLoad);
+        }
+    }
+
+    /* slots is the number of sketches that may run at the same time */
+    public SketchScheduler(int slots) {
+        mSlots = new Semaphore(Math.max(1, slots), true);
+    }
+
+    /*
+        Adds a sketch that owns the physical pins in pinMask and sees the virtual pins from vpinFirst on
+        as VPIN_BASE and following. Owned pins and virtual ranges of two sketches must not overlap.
+        The sketch starts at once if the scheduler runs. Returns null if the arguments are invalid.
+    */
+    public synchronized Task add(ArduinoSketch sketch, int pinMask, int vpinFirst, int vpinCount) {
+        if(sketch == null || sketch.mTask != null) {
+            Log.e(TAG, "add: no sketch or already added");
+            return null;
+        }
+        if((pinMask & ~((1 << (MAX_FT_PIN_NUMBER + 1)) - 1)) != 0) {
+            Log.e(TAG, "add: pinMask has no physical pins only");
+            return null;
+        }
+        if(vpinCount < 0 || vpinFirst < VPIN_BASE || vpinFirst + vpinCount > VREG_BASE + VREG_PINS) {
+            Log.e(TAG, "add: virtual pins out of range");
+            return null;
+        }
+        for (Task other : mTasks) {
+            if((other.pinMask & pinMask) != 0
+                    || (vpinFirst < other.vpinFirst + other.vpinCount && other.vpinFirst < vpinFirst + vpinCount)) {
+                Log.e(TAG, "add: pins already owned by " + other.getName());
+                return null;
+            }
+        }
+        Task task = new Task(sketch, pinMask, vpinFirst, vpinCount);
+        sketch.mTask = task;
+        mTasks.add(task);
+        if(mStarted)
+            startRunner(task);
+        return task;
+    }
+
+    /* Stops a sketch after its current loop() and removes it */
+    public synchronized void remove(Task task) {
+        if(!mTasks.remove(task))
+            return;
+        if(task.mRunner != null) {
+            task.mRunner.stopRunner();
+            task.mRunner = null;
+        }
+        task.sketch.mTask = null;
+    }
+
+    public synchronized Task[] getTasks() {
+        return mTasks.toArray(new Task[0]);
+    }
+
+    /* Runs setup() and then loop() of every sketch, each on its own thread */
+    synchronized void start() {
+        mStarted = true;
+        for (Task task : mTasks)
+            if(task.mRunner == null)
+                startRunner(task);
+    }
+
+    /* Stops every sketch after its current loop(), delay() and waitForPin() return early. Does not wait,
+       a later start() runs setup() only once the stopped loop() returned */
+    synchronized void stop() {
+        mStarted = false;
+        for (Task task : mTasks) {
+            if(task.mRunner != null) {
+                task.mRunner.stopRunner();
+                task.mRunner = null;
+            }
+        }
+    }
+
+    //The new runner waits for the last one of the sketch, whose loop() may still run
+    private void startRunner(Task task) {
+        task.mRunner = new Runner(task, task.sketch.mRunner);
+        task.mRunner.setName("sketch-" + task.getName());
+        task.sketch.mRunner = task.mRunner;
+        task.mRunner.start();
+    }
+
+    /*
+        Waits until deadline without holding a slot if called from a sketch, returns false otherwise.
+        Returns early if the sketch is being stopped.
+    */
+    static boolean sleepUntil(long deadline) {
+        Thread t = Thread.currentThread();
+        if(!(t instanceof Runner))
+            return false;
+        Runner runner = (Runner) t;
+        runner.waited = true;
+        runner.releaseSlot();
+        long left;
+        while(runner.running && (left = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(left);
+        runner.acquireSlot();
+        return true;
+    }
+
+    /*
+        Waits until UsbIOService.changeSeq() differs from seq or deadline passes, a sketch gives up its
+        slot meanwhile. Returns false if the deadline passed or the sketch is being stopped.
+    */
+    static boolean awaitChange(int seq, long deadline) {
+        Thread t = Thread.currentThread();
+        Runner runner = (t instanceof Runner) ? (Runner) t : null;
+        long left = deadline - System.nanoTime();
+        if(left <= 0 || (runner != null && !runner.running))
+            return false;
+        if(runner == null) {
+            //Other threads are not woken by notifyChange(), they poll
+            LockSupport.parkNanos(Math.min(left, UsbIOService.idleParkNanos()));
+            return true;
+        }
+        runner.waited = true;
+        runner.releaseSlot();
+        runner.idle = true;
+        if(seq == UsbIOService.changeSeq())
+            LockSupport.parkNanos(left);
+        runner.idle = false;
+        runner.acquireSlot();
+        return runner.running && deadline - System.nanoTime() > 0;
+    }
+
+    /* Wakes the sketches that wait for a pin or analog change */
+    static void wakeIdle() {
+        for (Runner runner : mRunners)
+            if(runner.idle)
+                LockSupport.unpark(runner);
+    }
+
+    private static synchronized void register(Runner runner) {
+        Runner[] runners = new Runner[mRunners.length + 1];
+        System.arraycopy(mRunners, 0, runners, 0, mRunners.length);
+        runners[mRunners.length] = runner;
+        mRunners = runners;
+    }
+
+    private static synchronized void unregister(Runner runner) {
+        ArrayList<Runner> runners = new ArrayList<>();
+        for (Runner r : mRunners)
+            if(r != runner)
+                runners.add(r);
+        mRunners = runners.toArray(new Runner[0]);
+    }
+
+    /* Thread of one sketch */
+    private final class Runner extends Thread {
+        private final Task task;
+        private final Thread previous; //Stopped runner of the same sketch or null
+        private volatile boolean running = true;
+        private volatile boolean idle = false; //Parked until the next notifyChange()
+        private boolean waited; //loop() called delay() or waitForPin()
+        private boolean holdsSlot = false;
+
+        Runner(Task task, Thread previous) {
+            this.task = task;
+            this.previous = previous;
+        }
+
+        @Override
+        public void run() {
+            //Without a slot, the previous runner may need one to leave delay()
+            if(previous != null) {
+                try {
+                    previous.join(STOP_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "run: interrupted");
+                    return;
+                }
+                if(previous.isAlive()) {
+                    Log.e(TAG, task.getName() + ": last loop() did not return, not started");
+                    return;
+                }
+            }
+            if(!running)
+                return;
+            register(this);
+            acquireSlot();
+            try {
+                task.sketch.setup();
+                long lastStart = 0; //0 after an idle park, that wait is no loop period
+                long lastPeriod = -1;
+                long windowStart = System.nanoTime();
+                long windowCpu = Debug.threadCpuTimeNanos();
+                long windowLoops = task.loops;
+                while (running) {
+                    long start = System.nanoTime();
+                    if(lastStart != 0) {
+                        long period = start - lastStart;
+                        task.period.record(period);
+                        if(lastPeriod >= 0)
+                            task.jitter.record(Math.abs(period - lastPeriod));
+                        lastPeriod = period;
+                    }
+                    lastStart = start;
+                    if(start - windowStart >= STATS_WINDOW_NS) {
+                        long cpu = Debug.threadCpuTimeNanos();
+                        task.loopRate = (task.loops - windowLoops) * 1e9f / (start - windowStart);
+                        task.cpuLoad = (cpu < 0) ? -1 : (float) (cpu - windowCpu) / (start - windowStart);
+                        task.cpuNanos = (cpu < 0) ? -1 : task.cpuNanos + cpu - windowCpu;
+                        windowStart = start;
+                        windowCpu = cpu;
+                        windowLoops = task.loops;
+                    }
+
+                    int seq = UsbIOService.changeSeq();
+                    waited = false;
+                    task.sketch.loop();
+                    task.loops++;
+                    //loop() neither waited nor changed anything, so park until a pin or analog value changes
+                    if(!waited && seq == UsbIOService.changeSeq()) {
+                        releaseSlot();
+                        idle = true;
+                        if(running && seq == UsbIOService.changeSeq())
+                            LockSupport.parkNanos(UsbIOService.idleParkNanos());
+                        idle = false;
+                        acquireSlot();
+                        lastStart = 0;
+                        lastPeriod = -1;
+                    } else if(mSlots.hasQueuedThreads()) {
+                        //Let the sketches waiting for a slot run first
+                        releaseSlot();
+                        acquireSlot();
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, task.getName() + " stopped", e);
+            } finally {
+                releaseSlot();
+                unregister(this);
+            }
+        }
+
+        void acquireSlot() {
+            if(!holdsSlot) {
+                mSlots.acquireUninterruptibly();
+                holdsSlot = true;
+            }
+        }
+
+        void releaseSlot() {
+            if(holdsSlot) {
+                holdsSlot = false;
+                mSlots.release();
+            }
+        }
+
+        void stopRunner() {
+            running = false;
+            LockSupport.unpark(this);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.docvolt.usbcontrol;
+
+import java.util.Arrays;
+
+/*
+    Software PWM for the physical FT232R pins. All channels share one period, their duty cycles are
+    merged into a single schedule of pin states, so one USB write per transition updates every
+    PWM pin at once. The IO thread looks up the state for the current time each cycle.
+*/
+final class SoftPwm {
+    public static final int MAX_DUTY = 255;
+
+    /* Immutable pin state schedule of one period */
+    private static final class Schedule {
+        final long period;
+        final int mask; //PWM pins
+        final long[] offsets; //Start of each step within the period, ascending, offsets[0] is 0
+        final int[] levels; //Pins that are high during each step
+
+        Schedule(long period, int mask, long[] offsets, int[] levels) {
+            this.period = period;
+            this.mask = mask;
+            this.offsets = offsets;
+            this.levels = levels;
+        }
+    }
+
+    private final long mEpoch;
+    private final int[] mDuty;
+    private int mEnabled = 0;
+    private long mPeriod;
+    private volatile Schedule mSchedule;
+
+    SoftPwm(int pins, int frequencyHz, long epoch) {
+        mDuty = new int[pins];
+        mEpoch = epoch;
+        mPeriod = 1000000000L / frequencyHz;
+        mSchedule = new Schedule(mPeriod, 0, new long[]{0}, new int[]{0});
+    }
+
+    synchronized void setDuty(int pin, int duty) {
+        mDuty[pin] = Math.max(0, Math.min(MAX_DUTY, duty));
+        mEnabled |= 1 << pin;
+        rebuild();
+    }
+
+    synchronized void disable(int mask) {
+        if((mEnabled & mask) == 0)
+            return;
+        mEnabled &= ~mask;
+        rebuild();
+    }
+
+    synchronized void setFrequency(int hz) {
+        mPeriod = 1000000000L / Math.max(1, hz);
+        rebuild();
+    }
+
+    int frequency() {
+        return (int) (1000000000L / mSchedule.period);
+    }
+
+    /* Pins driven by PWM, 0 if PWM is off */
+    int mask() {
+        return mSchedule.mask;
+    }
+
+    /* Pins that are high at time now */
+    int levelsAt(long now) {
+        Schedule s = mSchedule;
+        long phase = (now - mEpoch) % s.period;
+        int step = s.offsets.length - 1;
+        while(s.offsets[step] > phase)
+            step--;
+        return s.levels[step];
+    }
+
+    /* Time until the next pin transition, Long.MAX_VALUE if PWM is off */
+    long nanosUntilNext(long now) {
+        Schedule s = mSchedule;
+        if(s.offsets.length == 1)
+            return Long.MAX_VALUE; //No transitions, every pin is constant
+        long phase = (now - mEpoch) % s.period;
+        for(long offset : s.offsets)
+            if(offset > phase)
+                return offset - phase;
+        return s.period - phase;
+    }
+
+    /* Merges the duty cycles into a schedule, the pins go high at the start of the period */
+    private void rebuild() {
+        long[] offsets = new long[mDuty.length + 1];
+        int[] levels = new int[mDuty.length + 1];
+        int high = 0;
+        for(int pin = 0; pin < mDuty.length; pin++)
+            if((mEnabled & (1 << pin)) != 0 && mDuty[pin] > 0)
+                high |= 1 << pin;
+        levels[0] = high;
+        int steps = 1;
+        // Falling edges, ascending by duty
+        int[] order = new int[mDuty.length];
+        int n = 0;
+        for(int pin = 0; pin < mDuty.length; pin++)
+            if((high & (1 << pin)) != 0 && mDuty[pin] < MAX_DUTY)
+                order[n++] = (mDuty[pin] << 8) | pin;
+        Arrays.sort(order, 0, n);
+        for(int i = 0; i < n; i++) {
+            int pin = order[i] & 0xFF;
+            long offset = mPeriod * (order[i] >> 8) / MAX_DUTY;
+            if(offset != offsets[steps - 1]) {
+                offsets[steps] = offset;
+                levels[steps] = levels[steps - 1];
+                steps++;
+            }
+            levels[steps - 1] &= ~(1 << pin);
+        }
+        mSchedule = new Schedule(mPeriod, mEnabled, Arrays.copyOf(offsets, steps), Arrays.copyOf(levels, steps));
+    }
+}
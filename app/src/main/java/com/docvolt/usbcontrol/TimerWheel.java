@@ -0,0 +1,189 @@
+package com.docvolt.usbcontrol;
+
+/*
+    Hashed timer wheel for scheduled pin actions. Timers are sorted into slots by their deadline, the
+    IO thread calls advance() every cycle and applies the pins of the timers that became due in the
+    same cycle. All times are System.nanoTime() values.
+*/
+final class TimerWheel {
+    private static final long TICK_NS = 100000; //100 us per slot
+    private static final int SLOTS = 1024; //One revolution is 102.4 ms
+
+    static final int ACTION_HIGH = 0;
+    static final int ACTION_LOW = 1;
+    static final int ACTION_TOGGLE = 2;
+
+    public final class Timer {
+        private long deadline;
+        private final long period; //0 for one-shot timers
+        private final int mask;
+        private final int action;
+        private Timer next;
+        private int slot; //Slot it is linked into, overdue timers go to the current one
+        private boolean queued = false;
+        private volatile long fired = 0;
+
+        private Timer(long deadline, long period, int mask, int action) {
+            this.deadline = deadline;
+            this.period = period;
+            this.mask = mask;
+            this.action = action;
+        }
+
+        public long getFired() {
+            return fired;
+        }
+
+        public void cancel() {
+            synchronized (TimerWheel.this) {
+                if(queued)
+                    unlink(this);
+            }
+        }
+    }
+
+    public static final class Stats {
+        public final long fired;
+        public final long missed; //Periods of periodic timers skipped because the IO loop fell behind
+        public final long avgJitterNs; //Delay from the deadline to the IO cycle that applied the timer
+        public final long maxJitterNs;
+
+        Stats(long fired, long missed, long avgJitterNs, long maxJitterNs) {
+            this.fired = fired;
+            this.missed = missed;
+            this.avgJitterNs = avgJitterNs;
+            this.maxJitterNs = maxJitterNs;
+        }
+    }
+
+    private final Timer[] mSlots = new Timer[SLOTS];
+    private long mTick; //Last processed tick
+    private long mEarliest = Long.MAX_VALUE;
+    private int mCount = 0;
+    private long mFired = 0;
+    private long mMissed = 0;
+    private long mJitterSum = 0;
+    private long mJitterMax = 0;
+
+    // Pins of the timers fired by the last advance(), IO thread only
+    int highMask;
+    int lowMask;
+    int toggleMask;
+
+    TimerWheel(long now) {
+        mTick = now / TICK_NS;
+    }
+
+    synchronized Timer schedule(long deadline, long period, int mask, int action) {
+        Timer timer = new Timer(deadline, period, mask, action);
+        link(timer);
+        return timer;
+    }
+
+    /* Time until the earliest deadline, Long.MAX_VALUE if no timer is pending */
+    synchronized long nanosUntilNext(long now) {
+        return (mCount == 0) ? Long.MAX_VALUE : mEarliest - now;
+    }
+
+    /* Fires the timers due at now into highMask, lowMask and toggleMask. Returns false if none fired */
+    synchronized boolean advance(long now) {
+        highMask = lowMask = toggleMask = 0;
+        if(mCount == 0 || now - mEarliest < 0) {
+            mTick = now / TICK_NS;
+            return false;
+        }
+        long tick = now / TICK_NS;
+        long first = Math.max(mTick, tick - SLOTS + 1); //Visit every slot at most once
+        for(long t = first; t <= tick; t++) {
+            Timer timer = mSlots[(int) (t & (SLOTS - 1))];
+            while(timer != null) {
+                Timer next = timer.next;
+                if(now - timer.deadline >= 0)
+                    fire(timer, now);
+                timer = next;
+            }
+        }
+        mTick = tick;
+        mEarliest = earliestFrom(tick);
+        return (highMask | lowMask | toggleMask) != 0;
+    }
+
+    /*
+        Earliest deadline of the pending timers, all due ones fired. Slots are scanned forward from tick
+        only until one holds a timer of its own revolution, later slots cannot hold an earlier one.
+    */
+    private long earliestFrom(long tick) {
+        if(mCount == 0)
+            return Long.MAX_VALUE;
+        long earliest = Long.MAX_VALUE;
+        for(long t = tick; t < tick + SLOTS; t++) {
+            for(Timer timer = mSlots[(int) (t & (SLOTS - 1))]; timer != null; timer = timer.next)
+                if(timer.deadline / TICK_NS <= t)
+                    earliest = Math.min(earliest, timer.deadline);
+            if(earliest != Long.MAX_VALUE)
+                return earliest;
+        }
+        //All timers are more than one revolution ahead
+        for(Timer head : mSlots)
+            for(Timer timer = head; timer != null; timer = timer.next)
+                earliest = Math.min(earliest, timer.deadline);
+        return earliest;
+    }
+
+    synchronized Stats stats() {
+        return new Stats(mFired, mMissed, (mFired == 0) ? 0 : mJitterSum / mFired, mJitterMax);
+    }
+
+    private void fire(Timer timer, long now) {
+        switch(timer.action) {
+            case ACTION_HIGH:
+                highMask |= timer.mask;
+                lowMask &= ~timer.mask;
+                break;
+            case ACTION_LOW:
+                lowMask |= timer.mask;
+                highMask &= ~timer.mask;
+                break;
+            default:
+                toggleMask ^= timer.mask;
+        }
+        long jitter = now - timer.deadline;
+        mFired++;
+        mJitterSum += jitter;
+        mJitterMax = Math.max(mJitterMax, jitter);
+        timer.fired++;
+        unlink(timer);
+        if(timer.period > 0) {
+            long missed = jitter / timer.period;
+            mMissed += missed;
+            timer.deadline += (missed + 1) * timer.period;
+            link(timer);
+        }
+    }
+
+    private void link(Timer timer) {
+        //A deadline before the last processed tick would land in a slot advance() already passed
+        int slot = (int) (Math.max(timer.deadline / TICK_NS, mTick) & (SLOTS - 1));
+        timer.slot = slot;
+        timer.next = mSlots[slot];
+        mSlots[slot] = timer;
+        timer.queued = true;
+        mCount++;
+        mEarliest = Math.min(mEarliest, timer.deadline);
+    }
+
+    private void unlink(Timer timer) {
+        int slot = timer.slot;
+        if(mSlots[slot] == timer)
+            mSlots[slot] = timer.next;
+        else
+            for(Timer t = mSlots[slot]; t != null; t = t.next)
+                if(t.next == timer) {
+                    t.next = timer.next;
+                    break;
+                }
+        timer.next = null;
+        timer.queued = false;
+        mCount--;
+    }
+}
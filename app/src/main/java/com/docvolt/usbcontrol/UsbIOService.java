@@ -1,5 +1,6 @@
 package com.docvolt.usbcontrol;
 
+import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -8,24 +9,31 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class UsbIOService extends Service{
 
     interface ArduinoListener {
-        /* This gets called when a physical or virtual pin is written to.*/
-        void onPinChange();
+        /* This gets called on the UI thread, at most once per display frame, when physical or virtual pins
+           changed. Bit n of changedMask is set if pin n changed, bit n of pins is digitalRead(n).
+           Right after the listener is set, all bits of changedMask are set. */
+        void onPinChange(int changedMask, int pins);
     }
 
     private static final String TAG = "usbioservice";
@@ -38,19 +46,15 @@ public class UsbIOService extends Service{
     public static final String ACTION_USB_PERMISSION_NOT_GRANTED = "com.docvolt.UsbIOService.USB_PERMISSION_NOT_GRANTED";
     public static final String ACTION_USB_DISCONNECTED = "com.docvolt.UsbIOService.USB_DISCONNECTED";
     public static final String ACTION_DIGITAL_WRITE = "com.docvolt.UsbIOService.DIGITAL_WRITE";
-    private static final int VENDOR_ID = 0x0403; //FT232R
-    private static final int PRODUCT_ID = 0x6001;
 
-    // The Lower 8 Bits represent the FT232 IO values. The upper 24 bits represent virtual IO values used by the app
-    private static final AtomicInteger mPins = new AtomicInteger(0xFFFFFF00); //Output
-    private static int mMode = 0xFFFFFF00; //Input mode {INPUT | OUTPUT}
-
-    // USB control constants
-    private static final int FTDI_DEVICE_OUT_REQTYPE = 0x40;
-    private static final int FTDI_DEVICE_IN_REQTYPE = 0xC0;
-    private static final int SIO_SET_BITMODE_REQUEST = 0x0b;
-    private static final int SIO_READ_PINS_REQUEST = 0x0c;
-    private static final int BITMODE_SYNCBB = 0x04; //8-Bit control register for output values
+    private static final long MIN_IDLE_PARK_NS = 1000000; //Upper bound for an idle sketch to notice time passing
+    private static final long RATE_WINDOW_NS = 1000000000;
+    private static final long SPIN_NS = 2000000; //delayMicroseconds() spins for the last 2 ms, parking is too coarse
+    private static final int PIPELINE_TIMEOUT_MS = 100; //A poll that takes longer restarts the pipeline
+    // A lost adapter that comes back within this time continues where it left off, the sketches keep running
+    private static final long RECONNECT_GRACE_MS = 10000;
+    private static final String SNAPSHOT_FILE = "pins.snapshot";
+    private static final String SIMULATOR = "Simulator";
 
     // FT232R IO numbers
     public static final byte PIN_TXD = 0;
@@ -62,22 +66,60 @@ public class UsbIOService extends Service{
     public static final byte PIN_DCD = 6;
     public static final byte PIN_RI = 7;
     public static final byte MAX_FT_PIN_NUMBER = 7;
+    static final String[] PIN_NAMES = {"TXD", "RXD", "RTS", "CTS", "DTR", "DSR", "DCD", "RI"}; //By pin number
     public static final byte VPIN_BASE = 8;
+    // Virtual pins from VREG_BASE on live in the register file instead of the pin bank
+    public static final int VREG_BASE = 32;
+    public static final int VREG_PINS = 4096;
+    public static final int ANALOG_CHANNELS = 4096;
+    // Adapters used at the same time, the Arduino-like functions without a device number address device 0
+    public static final int MAX_DEVICES = 8;
 
     private final IBinder binder = new UsbBinder();
 
     private UsbManager mUsbManager;
-    private UsbDevice mUsbDevice;
-    private UsbInterface mUsbInterface;
-    private UsbDeviceConnection mUsbDevConnection;
-    private IOThread mIOLoop = null;
+    // Open adapters by device number, main thread only
+    private final UsbDevice[] mUsbDevices = new UsbDevice[MAX_DEVICES];
+    private final IOThread[] mIOLoops = new IOThread[MAX_DEVICES];
+    private long mAttachedAt = 0; //When the last adapter attached, main thread only
 
     private ArduinoListener mArduinoFunctions;
+
+    // Pin change notification, at most one delivery is pending on the main thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mNotifyPending = new AtomicBoolean(false);
+    private int mNotifiedPins = 0; //Snapshot passed to the last onPinChange, main thread only
+    private boolean mNotifyAll = true;
+    private Choreographer.FrameCallback mFrameCallback = null;
+    private volatile long mNotifyRequested = 0; //When the pending delivery was scheduled
+
+    private final LatencyHistogram mUiLag = new LatencyHistogram(); //Written by the main thread only
     public static final int INPUT = 0;
     public static final int OUTPUT = 1;
-    private static final ConcurrentHashMap<Integer, Integer> mAnalogPins = new ConcurrentHashMap<>();
+    // Bit orders of shiftOut() and shiftIn()
+    public static final int LSBFIRST = BusMaster.LSBFIRST;
+    public static final int MSBFIRST = BusMaster.MSBFIRST;
+    // Edge modes
+    public static final int CHANGE = 1;
+    public static final int FALLING = 2;
+    public static final int RISING = 3;
+    private static final RegisterFile mRegisters = new RegisterFile(ANALOG_CHANNELS, VREG_PINS);
+
+    // Pin banks by device number, created when first used
+    private static final long mStartNanos = System.nanoTime();
+    private static final PinBank[] mBanks = new PinBank[MAX_DEVICES];
+    private static final PinBank mMain = device(0);
+
+    // Polling and idle detection
+    private static volatile PollPolicy mPollPolicy = PollPolicy.adaptive(5);
+    private static volatile int mAsyncDepth = 0; //Polls in flight, 0 for the lock-step loop
+    private static final AtomicInteger mChangeSeq = new AtomicInteger(); //Bumped on every pin or analog change
+    private static volatile PinGateway mGateway = null;
 
-    private final Sketch sketch = new Sketch();
+    // Sketches run while device 0 is open, the built-in one owns the output pins and all 24 virtual pins
+    private final SketchScheduler mScheduler = new SketchScheduler(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private final SketchScheduler.Task mSketchTask = mScheduler.add(new Sketch(),
+            (1 << PIN_TXD) | (1 << PIN_RXD) | (1 << PIN_RTS) | (1 << PIN_DTR), VPIN_BASE, VREG_BASE - VPIN_BASE);
 
     /*static {
         System.loadLibrary("usbcontrol");
@@ -95,6 +137,9 @@ public class UsbIOService extends Service{
         registerReceiver(usbReceiver, filter);
 
         mUsbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
+        File snapshot = snapshotFile();
+        if(snapshot != null && PinSnapshot.restore(snapshot, mRegisters))
+            Log.d(TAG, "onCreate: restored the pin state of the last run");
         initIODevice();
     }
 
@@ -113,33 +158,52 @@ public class UsbIOService extends Service{
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
+        stopGateway(); //Its selector thread and socket would outlive the service
+        saveState();
         super.onDestroy();
         unregisterReceiver(usbReceiver);
     }
 
+    /*
+        Saves pin modes, levels, virtual pins and analog channels, they are restored when the service
+        is created again. Done on onDestroy() and when an adapter detaches. Returns false if it failed.
+    */
+    public boolean saveState() {
+        File snapshot = snapshotFile();
+        return snapshot != null && PinSnapshot.save(snapshot, mBanks, mRegisters);
+    }
+
+    private File snapshotFile() {
+        File dir = getFilesDir();
+        return (dir == null) ? null : new File(dir, SNAPSHOT_FILE);
+    }
+
     private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            UsbDevice usbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
             if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
                 Log.d(TAG, "USB_DEVICE_ATTACHED");
+                mAttachedAt = System.nanoTime();
                 initIODevice();
                 // DeviceAttached
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
                 Log.d(TAG, "USB_DEVICE_DETACHED");
-                // Usb device was disconnected. send an intent to the Main Activity
-                if(mIOLoop != null)
-                    mIOLoop.stopThread();
-                context.sendBroadcast(new Intent(ACTION_USB_DISCONNECTED));
+                int device = (usbDevice == null) ? -1 : findDevice(usbDevice);
+                if(device < 0)
+                    return;
+                // The IO thread waits for the adapter to come back, if it does not the Main Activity
+                // gets ACTION_USB_DISCONNECTED
+                mUsbDevices[device] = null;
+                if(mIOLoops[device] != null)
+                    mIOLoops[device].detach();
+                saveState();
             } else if (ACTION_USB_PERMISSION.equals(intent.getAction())) {
                 Log.d(TAG, "ACTION_USB_PERMISSION");
                 if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, true)) {
                     context.sendBroadcast(new Intent(ACTION_USB_PERMISSION_GRANTED));
-                    mUsbInterface = mUsbDevice.getInterface(0);
-                    mUsbDevConnection = mUsbManager.openDevice(mUsbDevice);
-                    mIOLoop = new IOThread();
-                    mIOLoop.setName("usbIOThread");
-                    //mIOLoop.setPriority(Thread.MAX_PRIORITY);
-                    mIOLoop.start();
+                    if(usbDevice != null)
+                        openDevice(usbDevice);
                 } else {// User not accepted our USB connection. Send an Intent to the Main Activity
                     context.sendBroadcast(new Intent(ACTION_USB_PERMISSION_NOT_GRANTED));
                 }
@@ -148,172 +212,936 @@ public class UsbIOService extends Service{
     };
 
     /*
-        This function checks if the device is a FT232R device and checks the permissions.
-        Call this to initialize the device.
+        This function looks for supported adapters that are not open yet and checks the permissions.
+        Call this to initialize the devices.
     */
     public void initIODevice() {
+        int found = 0;
         HashMap<String, UsbDevice> deviceList = mUsbManager.getDeviceList();
         for (Map.Entry<String, UsbDevice> entry : deviceList.entrySet()) {
-            Log.d(TAG, String.format("Device detected: %s:%s", entry.getValue().getVendorId(), entry.getValue().getProductId()));
-            if (entry.getValue().getVendorId() == VENDOR_ID && entry.getValue().getProductId() == PRODUCT_ID) {
-                Log.d(TAG, "FT 232R Device found");
+            UsbDevice usbDevice = entry.getValue();
+            Log.d(TAG, String.format("Device detected: %s:%s", usbDevice.getVendorId(), usbDevice.getProductId()));
+            if (!DeviceRegistry.isSupported(usbDevice))
+                continue;
+            found++;
+            if (findDevice(usbDevice) >= 0)
+                continue; //Already open
+            Log.d(TAG, DeviceRegistry.nameOf(usbDevice) + " Device found");
+            if (mUsbManager.hasPermission(usbDevice)) {
+                sendBroadcast(new Intent(ACTION_USB_PERMISSION_GRANTED));
+                openDevice(usbDevice);
+            } else {
                 PendingIntent mPendingIntent = PendingIntent.getBroadcast(UsbIOService.this, 0, new Intent(ACTION_USB_PERMISSION), 0);
-                mUsbManager.requestPermission(entry.getValue(), mPendingIntent);
-                mUsbDevice = entry.getValue();
+                mUsbManager.requestPermission(usbDevice, mPendingIntent);
             }
         }
-        Log.d(TAG, "No or no valid USB device");
-        sendBroadcast(new Intent(ACTION_NO_VALID_USB));
+        if (found == 0) {
+            Log.d(TAG, "No or no valid USB device");
+            sendBroadcast(new Intent(ACTION_NO_VALID_USB));
+        }
     }
 
-    public class UsbBinder extends Binder {
-        public UsbIOService getService() {
-            return UsbIOService.this;
+    /* Opens an adapter with its chip driver and starts an IO thread for it on the lowest free device number */
+    private void openDevice(UsbDevice usbDevice) {
+        if(findDevice(usbDevice) >= 0)
+            return;
+        long attached = (mAttachedAt != 0) ? mAttachedAt : System.nanoTime();
+        mAttachedAt = 0;
+        String name = DeviceRegistry.nameOf(usbDevice);
+        int device = findWaiting(name);
+        if(device < 0)
+            device = findDevice(null);
+        if(device < 0) {
+            Log.e(TAG, "openDevice: more than " + MAX_DEVICES + " adapters");
+            return;
         }
+        PinDriver driver = DeviceRegistry.createDriver(usbDevice);
+        UsbDeviceConnection connection = mUsbManager.openDevice(usbDevice);
+        if(driver == null || connection == null || !driver.open(connection, usbDevice)) {
+            Log.e(TAG, "openDevice: could not open " + usbDevice.getDeviceName());
+            if(connection != null)
+                connection.close();
+            sendBroadcast(new Intent(ACTION_USB_NOT_SUPPORTED));
+            return;
+        }
+        Log.d(TAG, "openDevice: " + name + " is device " + device);
+        mUsbDevices[device] = usbDevice;
+        startIO(device, driver, connection, name, attached);
     }
-    /* Thread of the loop() function */
-    private class LoopThread extends Thread {
-        private boolean isRunning = true;
-        @Override
-        public void run () {
-            while (isRunning) {
-                sketch.loop();
+
+    /*
+        Runs an IO thread on a simulated FT232R instead of an adapter, which also works on a desktop JVM.
+        Returns the device number, device 0 hosts the sketch like a real adapter. -1 if all are taken.
+    */
+    public int openSimulator(SimulatedFt232r simulator) {
+        long attached = System.nanoTime();
+        int device = findWaiting(SIMULATOR);
+        if(device < 0)
+            device = findDevice(null);
+        if(device < 0) {
+            Log.e(TAG, "openSimulator: more than " + MAX_DEVICES + " adapters");
+            return -1;
+        }
+        Log.d(TAG, "openSimulator: device " + device);
+        startIO(device, simulator, null, SIMULATOR, attached);
+        return device;
+    }
+
+    /*
+        Starts polling an opened adapter on a device number. If the IO thread there waits for its lost
+        adapter, it takes this one over with the state of the pin bank and the sketches running.
+    */
+    private void startIO(int device, PinDriver driver, UsbDeviceConnection connection, String name, long attached) {
+        PinBank bank = device(device);
+        synchronized (bank.usbLock) {
+            bank.bitBang = driver.bitBang();
+            bank.writtenLow = -1; //The first transfer writes the outputs of the bank, as they were before a reconnect
+            bank.lastLevels = 0xFF;
+            bank.pinMask = driver.pinMask() & 0xFF;
+            bank.attachNanos = attached;
+        }
+        IOThread waiting = mIOLoops[device];
+        if(waiting != null) {
+            if(waiting.attach(driver, connection, name)) {
+                Log.d(TAG, "startIO: device " + device + " continues on its IO thread");
+                return;
             }
+            mIOLoops[device] = null; //Gave up just now
         }
-        public void stopThread() {
-            isRunning = false;
+        mIOLoops[device] = new IOThread(bank, driver, connection, device == 0, name);
+        mIOLoops[device].setName((device == 0) ? "usbIOThread" : "usbIOThread" + device);
+        //mIOLoops[device].setPriority(Thread.MAX_PRIORITY);
+        mIOLoops[device].start();
+    }
+
+    /* Stops the IO thread of a device and closes its adapter or simulator */
+    public void closeDevice(int device) {
+        if(device < 0 || device >= MAX_DEVICES)
+            return;
+        if(mIOLoops[device] != null)
+            mIOLoops[device].stopThread();
+        PinBank bank = device(device);
+        synchronized (bank.usbLock) {
+            bank.bitBang = null;
+        }
+        mIOLoops[device] = null;
+        mUsbDevices[device] = null;
+    }
+
+    /* Lowest device number whose IO thread waits for a lost adapter of that kind, -1 if there is none */
+    private int findWaiting(String name) {
+        for (int device = 0; device < MAX_DEVICES; device++)
+            if (mIOLoops[device] != null && mIOLoops[device].awaits(name))
+                return device;
+        return -1;
+    }
+
+    /* Returns the device number of an open adapter, or the first free one for null. -1 if there is none */
+    private int findDevice(UsbDevice usbDevice) {
+        for (int device = 0; device < MAX_DEVICES; device++) {
+            UsbDevice open = mUsbDevices[device];
+            if ((usbDevice == null) ? open == null && mIOLoops[device] == null
+                    : open != null && open.getDeviceName().equals(usbDevice.getDeviceName()))
+                return device;
+        }
+        return -1;
+    }
+
+    /* Number of adapters and simulators currently open */
+    public int getDeviceCount() {
+        int count = 0;
+        for (IOThread ioLoop : mIOLoops)
+            if (ioLoop != null)
+                count++;
+        return count;
+    }
+
+    /* Chip name of the adapter with that device number, or null if none is open there */
+    public String getDeviceName(int device) {
+        if(device < 0 || device >= MAX_DEVICES || mIOLoops[device] == null)
+            return null;
+        return (mUsbDevices[device] == null) ? SIMULATOR : DeviceRegistry.nameOf(mUsbDevices[device]);
+    }
+
+    public class UsbBinder extends Binder {
+        public UsbIOService getService() {
+            return UsbIOService.this;
+        }
+
+        /* Hot path metrics of the adapter with that device number, see IOMetrics */
+        public IOMetrics getMetrics(int device) {
+            return UsbIOService.this.getMetrics(device);
         }
     }
 
-    /*This reads and writes FT232 pins and virtual pins*/
+    /* Snapshot of the IO loop, transfer, sketch and UI metrics, null if the device number is out of range */
+    public IOMetrics getMetrics(int device) {
+        PinBank bank = device(device);
+        if(bank == null)
+            return null;
+        return new IOMetrics(device, System.nanoTime(), bank.pollRate, bank.ioCpuLoad, bank.transferErrors,
+                bank.pipelineDepth, bank.requestsInFlight, bank.pipelineTimeouts,
+                bank.reconnects, bank.timeToFirstIONanos, bank.lastOutageNanos,
+                bank.writeLatency.snapshot(), bank.readLatency.snapshot(),
+                mSketchTask.period.snapshot(), mSketchTask.jitter.snapshot(), mUiLag.snapshot());
+    }
+    /*
+        This reads and writes the pins of one adapter. The thread of device 0 also starts the sketches.
+        When the adapter is lost the thread parks for RECONNECT_GRACE_MS with the sketches still running
+        on the pin bank, and an adapter of the same kind that attaches in time continues on it.
+    */
     private class IOThread extends Thread {
-        private boolean isRunning;
+        private volatile boolean isRunning = true;
+        private volatile boolean linkUp = true; //False once the adapter failed or detached
         private int _pins = 0;
-        private byte _rdvals = (byte)0xFF;
-        private final byte[] rdvals = {0};
-        Handler mHandler = new Handler();
-        private final LoopThread loopThread = new LoopThread();
+        private final PinBank bank;
+        private PinDriver driver;
+        private UsbDeviceConnection connection; //null for a simulator
+        private final boolean hostSketch;
+        private int asyncDepth = 0; //Depth the pipeline was last started with
+        private PollPolicy pollPrototype = null; //mPollPolicy the copy below was made of
+        private PollPolicy pollPolicy = null;
+        // Handover to a reattached adapter, guarded by this
+        private String adapterName;
+        private boolean standby = false;
+        private boolean retired = false;
+        private PinDriver nextDriver;
+        private UsbDeviceConnection nextConnection;
+
+        IOThread(PinBank bank, PinDriver driver, UsbDeviceConnection connection, boolean hostSketch, String adapterName) {
+            this.bank = bank;
+            this.driver = driver;
+            this.connection = connection;
+            this.hostSketch = hostSketch;
+            this.adapterName = adapterName;
+        }
 
         @Override
         public void run() {
             Log.d(TAG, "run");
-            sketch.setup();
-            loopThread.setName("loopThread");
-            loopThread.start();
+            if(hostSketch)
+                mScheduler.start();
             //csetup();
-            isRunning = true;
-            //mUsbDevConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_SET_BITMODE_REQUEST, (BITMODE_SYNCBB << 8), mUsbInterface.getId(), null, 0, 0);
-            while (isRunning) {
-                //Write to FT232R ports
-                byte writeval = (byte) (mPins.get() & mMode);
-                if(writeval != (_pins & mMode)) {
-                    int bang_val = (BITMODE_SYNCBB << 8) + writeval;
-                    if (mUsbDevConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_SET_BITMODE_REQUEST, bang_val, mUsbInterface.getId(), null, 0, 0) == -1) {
-                        Log.e(TAG, "Error, could not write pin");
-                        isRunning = false;
+            while(true) {
+                runIO();
+                release();
+                if(!isRunning || !awaitAdapter())
+                    break;
+            }
+            if(hostSketch)
+                mScheduler.stop();
+            synchronized (this) {
+                retired = true;
+            }
+            if(isRunning) {
+                //Gave up on the adapter, free the device number like a closeDevice()
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        int device = bank.device;
+                        if(mIOLoops[device] != IOThread.this)
+                            return;
+                        Log.d(TAG, "device " + device + " did not come back");
+                        mIOLoops[device] = null;
+                        mUsbDevices[device] = null;
+                        if(device == 0)
+                            sendBroadcast(new Intent(ACTION_USB_DISCONNECTED));
                     }
+                });
+            }
+        }
+
+        /* Polls the current adapter until it fails, detaches or the thread is stopped */
+        private void runIO() {
+            int pinMask = driver.pinMask() & 0xFF;
+            int polls = 0;
+            long windowStart = System.nanoTime();
+            long windowCpu = Debug.threadCpuTimeNanos();
+            long lastRead = System.nanoTime();
+            boolean first = true;
+            while (isRunning && linkUp) {
+                //Apply scheduled pin actions, they go out with this cycle's write
+                if(bank.timers.advance(System.nanoTime())) {
+                    int outputs = bank.mode;
+                    bank.updatePins(bank.timers.highMask & outputs, 0);
+                    bank.updatePins(bank.timers.lowMask & outputs, ~0);
+                    bank.togglePins(bank.timers.toggleMask & outputs);
+                    notifyChange();
                 }
+                //Software PWM, its pins are part of this cycle's write as well
+                int pwm = bank.pwm.mask() & bank.mode;
+                if(pwm != 0)
+                    bank.updatePins(pwm, ~bank.pwm.levelsAt(System.nanoTime()));
+                int rdvals;
+                long now;
+                synchronized (bank.usbLock) {
+                    //Write to the adapter's pins
+                    long start = writeOutputs(pinMask, System.nanoTime());
 
-                //Read from FT232R ports
-                if(mUsbDevConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE, SIO_READ_PINS_REQUEST, 0, mUsbInterface.getId(), rdvals, 1, 0) == -1) {
-                    Log.e(TAG,"Error, could not read pin");
-                    isRunning = false;
+                    //Read from the adapter's pins
+                    rdvals = readInputs();
+                    now = System.nanoTime();
+                    bank.readLatency.record(now - start);
+                    if(rdvals == -1) {
+                        Log.e(TAG,"Error, could not read pin");
+                        bank.transferErrors++;
+                        linkUp = false;
+                    } else if(bank.capture != null) {
+                        bank.capture.sample(now, rdvals & pinMask);
+                    }
+                }
+                if(!linkUp)
+                    break;
+                if(first) {
+                    first = false;
+                    recordFirstIO(now);
                 }
-                rdvals[0] = (byte) (rdvals[0] & ~mMode);
-                if(rdvals[0] != _rdvals){
-                    int pin_changed = 0x00FF & (_rdvals ^ rdvals[0]);
-                    int val_changed = rdvals[0] & pin_changed;
-                    //Log.d(TAG, String.format("val_changed: %X", val_changed));
-                    if(val_changed != 0)
-                        mPins.set(mPins.get() &~pin_changed);
-                        //mPins &= ~pin_changed;
-                    else
-                        mPins.set(mPins.get() | pin_changed);
-                        //mPins |= pin_changed;
-                    _rdvals = rdvals[0];
+                if(bank.mergeInputs(rdvals, ~bank.mode & pinMask, now))
+                    notifyChange();
+                //Pin rules react on the fresh levels, their outputs go out in this iteration
+                PinRules rules = bank.rules;
+                if(rules != null && rules.apply(bank, mRegisters)) {
+                    notifyChange();
+                    if((bank.pins.get() & bank.mode & pinMask) != bank.writtenLow) {
+                        long written;
+                        synchronized (bank.usbLock) {
+                            written = writeOutputs(pinMask, System.nanoTime());
+                        }
+                        if(!linkUp)
+                            break;
+                        rules.recordReaction(written - lastRead);
+                    }
                 }
+                lastRead = now;
 
-                if(mPins.get() != _pins) {
+                boolean changed = bank.pins.get() != _pins;
+                if(changed && hostSketch) {
                     //Log.d(TAG, String.format("mPins: %X", mPins));
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mArduinoFunctions.onPinChange();
-                        }
-                    });
+                    requestPinNotify();
                 }
-                _pins = mPins.get();
+                _pins = bank.pins.get();
                 //Log.d(TAG, "IOTHREAD-->");
                 //sketch.loop();
+
+                //Wait for the next poll unless an output is already pending. Inputs the filter still
+                //settles are polled like after a change, until their count or window is over
+                long later = System.nanoTime();
+                InputFilter filter = bank.filter;
+                boolean settling = filter != null && filter.pending() != 0;
+                if(pollPrototype != mPollPolicy) {
+                    pollPrototype = mPollPolicy;
+                    pollPolicy = pollPrototype.copy();
+                }
+                long wait = Math.min(pollPolicy.nextDelayNanos(changed || settling, now),
+                        Math.min(bank.timers.nanosUntilNext(later), bank.pwm.nanosUntilNext(later)));
+                if(settling)
+                    wait = Math.min(wait, filter.nanosUntilNext(later));
+                if(wait > 0) {
+                    bank.ioWaiter = this;
+                    if((bank.pins.get() & bank.mode & pinMask) == bank.writtenLow)
+                        LockSupport.parkNanos(wait);
+                    bank.ioWaiter = null;
+                }
+
+                polls++;
+                if(now - windowStart >= RATE_WINDOW_NS) {
+                    long cpu = Debug.threadCpuTimeNanos();
+                    bank.pollRate = polls * 1e9f / (now - windowStart);
+                    bank.ioCpuLoad = (cpu < 0) ? -1 : (float) (cpu - windowCpu) / (now - windowStart);
+                    polls = 0;
+                    windowStart = now;
+                    windowCpu = cpu;
+                }
+            }
+        }
+
+        /* Closes the adapter, the pin bank keeps its state for the next one */
+        private void release() {
+            synchronized (bank.usbLock) {
+                if(bank.bitBang == driver.bitBang())
+                    bank.bitBang = null;
+                if(bank.pipeline == driver.pipeline())
+                    bank.pipeline = null;
+                bank.pipelineDepth = 0;
+                bank.requestsInFlight = 0;
+                driver.close();
+                if(connection != null)
+                    connection.close();
             }
+            bank.detachNanos = System.nanoTime();
+        }
+
+        /*
+            Parks until attach() hands over a new adapter, the thread is stopped or the grace period is
+            over. Returns true with the new adapter in place.
+        */
+        private synchronized boolean awaitAdapter() {
+            standby = true;
+            Log.d(TAG, "awaitAdapter: device " + bank.device + " waits for its adapter");
+            long deadline = System.nanoTime() + RECONNECT_GRACE_MS * 1000000L;
+            long left;
+            while(nextDriver == null && isRunning && (left = deadline - System.nanoTime()) > 0) {
+                try {
+                    wait(left / 1000000 + 1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if(nextDriver == null || !isRunning) {
+                retired = true; //attach() fails from now on
+                if(nextDriver != null) {
+                    nextDriver.close();
+                    if(nextConnection != null)
+                        nextConnection.close();
+                }
+                return false;
+            }
+            driver = nextDriver;
+            connection = nextConnection;
+            nextDriver = null;
+            nextConnection = null;
+            standby = false;
+            asyncDepth = 0;
+            linkUp = true;
+            return true;
+        }
+
+        /* True while the thread waits for an adapter of that kind */
+        synchronized boolean awaits(String name) {
+            return standby && !retired && isRunning && adapterName.equals(name);
         }
+
+        /* Hands a reopened adapter to the parked thread. Returns false if it already gave up */
+        synchronized boolean attach(PinDriver driver, UsbDeviceConnection connection, String name) {
+            if(!standby || retired || !isRunning)
+                return false;
+            nextDriver = driver;
+            nextConnection = connection;
+            adapterName = name;
+            notifyAll();
+            return true;
+        }
+
+        /* The adapter is gone, stop polling it and wait for it to come back */
+        synchronized void detach() {
+            standby = true;
+            linkUp = false;
+            LockSupport.unpark(this);
+        }
+
+        private void recordFirstIO(long now) {
+            long attached = bank.attachNanos;
+            bank.timeToFirstIONanos = now - attached;
+            long detached = bank.detachNanos;
+            if(detached != 0) {
+                bank.reconnects++;
+                bank.lastOutageNanos = now - detached;
+            }
+            Log.d(TAG, String.format("device %d: first IO %.1f ms after attach%s", bank.device,
+                    (now - attached) / 1e6, (detached == 0) ? "" : String.format(", %.0f ms without adapter", (now - detached) / 1e6)));
+        }
+
+        /* Writes the outputs if they changed since the last write, under usbLock. Returns when the write ended, start if there was none */
+        private long writeOutputs(int pinMask, long start) {
+            int writeval = bank.pins.get() & bank.mode & pinMask;
+            if(writeval == bank.writtenLow)
+                return start;
+            if (!driver.write(writeval)) {
+                Log.e(TAG, "Error, could not write pin");
+                bank.transferErrors++;
+                linkUp = false;
+            }
+            long written = System.nanoTime();
+            bank.writeLatency.record(written - start);
+            bank.writeNanos += (written - start - bank.writeNanos) / 8;
+            bank.writtenLow = writeval;
+            return written;
+        }
+
+        /* Reads the pins in lock-step or through the driver's pipeline, see setAsyncIO(). Under usbLock */
+        private int readInputs() {
+            PinPipeline pipeline = driver.pipeline();
+            int depth = (pipeline == null) ? 0 : Math.min(mAsyncDepth, FtdiPipeline.MAX_DEPTH);
+            //Restart on a new depth or after a waveform stopped it, a failed start is not retried
+            if(pipeline != null && (depth != asyncDepth || (bank.pipeline != null && pipeline.depth() == 0))) {
+                pipeline.stop();
+                bank.pipeline = null;
+                asyncDepth = depth;
+                if(depth > 0 && pipeline.start(depth))
+                    bank.pipeline = pipeline;
+            }
+            int levels = (bank.pipeline != null) ? pipeline.read(PIPELINE_TIMEOUT_MS) : driver.read();
+            if(pipeline != null) {
+                bank.pipelineDepth = pipeline.depth();
+                bank.requestsInFlight = pipeline.inFlight();
+                bank.pipelineTimeouts = pipeline.timeouts();
+            }
+            return levels;
+        }
+
         public void stopThread() {
             Log.d(TAG, "Stopping threads");
-            loopThread.stopThread();
+            if(hostSketch)
+                mScheduler.stop();
             isRunning = false;
+            LockSupport.unpark(this);
+            synchronized (this) {
+                notifyAll();
+            }
         }
     }
 
     public void setArduinoFunctionsCB(ArduinoListener cb) {
         mArduinoFunctions = cb;
+        mNotifyAll = true;
+        requestPinNotify();
+    }
+
+    /* Schedules one onPinChange, changes until it is delivered are coalesced into it */
+    void requestPinNotify() {
+        if(mNotifyPending.compareAndSet(false, true)) {
+            mNotifyRequested = System.nanoTime();
+            mHandler.post(mNotifyPost);
+        }
+    }
+
+    private final Runnable mNotifyPost = new Runnable() {
+        @Override
+        public void run() {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                postOnFrame();
+            else
+                deliverPinChange();
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnFrame() {
+        if(mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    deliverPinChange();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    private void deliverPinChange() {
+        long requested = mNotifyRequested;
+        mNotifyPending.set(false); //Changes from now on schedule a new delivery
+        int pins = ~mMain.pins.get();
+        int changed = mNotifyAll ? ~0 : pins ^ mNotifiedPins;
+        ArduinoListener listener = mArduinoFunctions;
+        if(changed == 0 || listener == null)
+            return;
+        mNotifiedPins = pins;
+        mNotifyAll = false;
+        listener.onPinChange(changed, pins);
+        mUiLag.record(System.nanoTime() - requested);
+    }
+
+    /* Selects how often the IO threads poll the inputs, each thread uses its own copy of policy, see PollPolicy */
+    public static void setPollPolicy(PollPolicy policy) {
+        Log.d(TAG, String.format("setPollPolicy: %s -> %s, last policy achieved %.0f polls/s at %.1f%% CPU",
+                mPollPolicy, policy, mMain.pollRate, mMain.ioCpuLoad * 100));
+        mPollPolicy = policy;
+        synchronized (mBanks) {
+            for (PinBank bank : mBanks)
+                if (bank != null)
+                    bank.wakeIO();
+        }
+    }
+
+    /*
+        Lets the IO threads keep depth input polls in flight (1-8) on adapters that support it, FTDI
+        from Android 8.0 on and the simulator. Writes then overlap the polls, and a read returns as
+        soon as any poll completes. A read may not yet show the write of the same loop iteration.
+        0 goes back to the lock-step loop, one write and one read transfer after the other.
+    */
+    public static void setAsyncIO(int depth) {
+        Log.d(TAG, String.format("setAsyncIO: %d -> %d polls in flight, last setting achieved %.0f polls/s",
+                mAsyncDepth, depth, mMain.pollRate));
+        mAsyncDepth = Math.max(0, depth);
+        synchronized (mBanks) {
+            for (PinBank bank : mBanks)
+                if (bank != null)
+                    bank.wakeIO();
+        }
+    }
+
+    /* Input polls per second of the IO thread of device 0, measured over the last second */
+    public static float getPollRate() {
+        return mMain.getPollRate();
+    }
+
+    /* CPU time of the IO thread of device 0 as a fraction of one core over the last second, -1 if unknown */
+    public static float getIOCpuLoad() {
+        return mMain.getIOCpuLoad();
+    }
+
+    /* Records a pin or analog change and wakes the idle sketches */
+    static void notifyChange() {
+        mChangeSeq.incrementAndGet();
+        SketchScheduler.wakeIdle();
+        PinGateway gateway = mGateway;
+        if(gateway != null)
+            gateway.pinsChanged();
+    }
+
+    /* Changes whenever notifyChange() is called */
+    static int changeSeq() {
+        return mChangeSeq.get();
+    }
+
+    /* How long an idle sketch parks before it looks at the time again */
+    static long idleParkNanos() {
+        return Math.max(MIN_IDLE_PARK_NS, mPollPolicy.getLatencyBudgetNanos());
+    }
+
+    /* Runs the built-in Sketch and any sketch added to it while device 0 is open */
+    public SketchScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /*
+        Returns the pins of the adapter with that device number, the Arduino-like functions of the bank
+        address that adapter only. Device numbers are handed out in the order the adapters are opened,
+        an unplugged adapter leaves a gap that the next one fills.
+    */
+    public static PinBank device(int device) {
+        if(device < 0 || device >= MAX_DEVICES) {
+            Log.e(TAG, "device: number out of range");
+            return null;
+        }
+        synchronized (mBanks) {
+            if(mBanks[device] == null)
+                mBanks[device] = new PinBank(device, mStartNanos);
+            return mBanks[device];
+        }
     }
 
     //Arduino-like functions
     public static int digitalRead(int pin) {
-        int b = mPins.get() & (1 << pin);
-       //Log.d(TAG,"digitalRead: " + b);
-        return (b == 0)? 1 : 0;
+        if(pin >= VREG_BASE)
+            return (validVReg(pin) && mRegisters.readDigital(pin - VREG_BASE)) ? 1 : 0;
+        return mMain.digitalRead(pin);
+    }
+
+    public static int digitalRead(int device, int pin) {
+        if(device == 0 || pin >= VREG_BASE)
+            return digitalRead(pin);
+        PinBank bank = device(device);
+        return (bank == null) ? 0 : bank.digitalRead(pin);
     }
 
     /* Arduino-like function definitions */
 
     public static void digitalWrite(int pin, int value) {
-        if(((1 << pin) & mMode) == 0)
-            return; //If pin is not masked as output, do nothing
-        if(value == 0)
-            mPins.set(mPins.get() | (1 << pin)); //On
-            //mPins |= 1 << pin; //Only affect pins that are masked as input (0)
-        else
-            mPins.set(mPins.get() & ~(1 << pin)); //Off
-            //mPins &= ~(1 << pin); //On
+        if(pin >= VREG_BASE) {
+            if(validVReg(pin) && mRegisters.writeDigital(pin - VREG_BASE, value != 0))
+                notifyChange();
+            return;
+        }
+        mMain.digitalWrite(pin, value);
     }
 
-    public static void pinMode(int pin, int mode) {
-        if(pin > MAX_FT_PIN_NUMBER) {
-            Log.e(TAG, "pinMode: pin out of range");
+    public static void digitalWrite(int device, int pin, int value) {
+        if(device == 0 || pin >= VREG_BASE) {
+            digitalWrite(pin, value);
             return;
         }
-        if(mode == INPUT) {
-            digitalWrite(pin, 1); //Default High (pullup)
-            mMode &= ~(1 << pin);
-        }
-        else {
-            mMode |= 1 << pin;
-            digitalWrite(pin, 0); //Default Low
-        }
-        Log.d(TAG, "pinMode: " + mMode);
+        PinBank bank = device(device);
+        if(bank != null)
+            bank.digitalWrite(pin, value);
     }
 
+    /*
+        Writes all pins in mask at once, bit n of values is the value of pin n. Pins that are not
+        outputs are left alone. The physical pins of one call go out in a single USB transfer.
+    */
+    public static void digitalWritePort(int mask, int values) {
+        mMain.digitalWritePort(mask, values);
+    }
+
+    /*
+        Collects the digitalWrite()s of the calling thread until the matching commit(), which
+        applies them as one port write. Pending writes are not visible to digitalRead() before.
+    */
+    public static void beginBatch() {
+        mMain.beginBatch();
+    }
+
+    public static void commit() {
+        mMain.commit();
+    }
+
+    public static void pinMode(int pin, int mode) {
+        mMain.pinMode(pin, mode);
+    }
+
+    public static void pinMode(int device, int pin, int mode) {
+        PinBank bank = device(device);
+        if(bank != null)
+            bank.pinMode(pin, mode);
+    }
+
+    /*
+        Stores value in analog channel pin. If pin is a physical pin set to OUTPUT, it is also driven
+        by software PWM with a duty cycle of value/255.
+    */
     public static void analogWrite(int pin, int value){
-        mAnalogPins.put(pin, value);
-        /*for(Map.Entry<Integer, Integer> item : mAnalogPins.entrySet()){
-            Log.d(TAG, "key: " + item.getKey() + " value: " + item.getValue());*/
+        if(pin < 0 || pin >= ANALOG_CHANNELS) {
+            Log.e(TAG, "analogWrite: pin out of range");
+            return;
+        }
+        mMain.pwmWrite(pin, value);
+        if(mRegisters.writeAnalog(pin, value))
+            notifyChange();
     }
 
     public static int analogRead(int pin) {
-        Integer value = mAnalogPins.get(pin);
-        if(value == null) {
+        if(pin < 0 || pin >= ANALOG_CHANNELS || mRegisters.analogSeq(pin) == 0) {
             Log.e(TAG, "analogRead: Tried to read a nonexistent pin. Call analog Write to create one");
             return 0;
         }
-        return value;
+        return mRegisters.readAnalog(pin);
+    }
+
+    /* Sets the PWM frequency of all physical pins, 100 Hz by default */
+    public static void setPwmFrequency(int hz) {
+        mMain.setPwmFrequency(hz);
+    }
+
+    /* PWM frequency the IO loop can keep, lower than the set one if a write takes more than half a period */
+    public static int getPwmFrequency() {
+        return mMain.getPwmFrequency();
+    }
+
+    /* Duty cycle resolution in bits, limited by how many pin writes fit into one PWM period */
+    public static float getPwmResolutionBits() {
+        return mMain.getPwmResolutionBits();
+    }
+
+    /* Change counter of an analog channel, it differs from the last call if the value changed meanwhile */
+    public static int analogChangeCount(int pin) {
+        return (pin < 0 || pin >= ANALOG_CHANNELS) ? 0 : mRegisters.analogSeq(pin);
+    }
+
+    /* Change counter of a virtual pin from VREG_BASE on */
+    public static int digitalChangeCount(int pin) {
+        return validVReg(pin) ? mRegisters.digitalSeq(pin - VREG_BASE) : 0;
+    }
+
+    private static boolean validVReg(int pin) {
+        if(pin < VREG_BASE || pin >= VREG_BASE + VREG_PINS) {
+            Log.e(TAG, "virtual pin out of range");
+            return false;
+        }
+        return true;
+    }
+
+    /*
+        Plays a waveform on the output pins in synchronous bit-bang mode. Each byte of states is one
+        sample, bit n drives pin n HIGH (1) or LOW (0) if the pin is an output. Returns the input
+        levels sampled for every state, or null if no adapter is connected or the transfer failed.
+        The IO thread is paused while the waveform plays, the outputs keep the levels of the last state.
+    */
+    public static byte[] playWaveform(byte[] states, int sampleRateHz) {
+        return mMain.playWaveform(states, sampleRateHz);
+    }
+
+    /* Like Arduino shiftOut(), the 8 clocks go out in one waveform. See BusMaster for the other buses */
+    public static void shiftOut(int dataPin, int clockPin, int bitOrder, int value) {
+        mMain.bus.shiftOut(dataPin, clockPin, bitOrder, value);
+    }
+
+    public static int shiftIn(int dataPin, int clockPin, int bitOrder) {
+        return mMain.bus.shiftIn(dataPin, clockPin, bitOrder);
+    }
+
+    public static void spiBegin(int sck, int mosi, int miso, int cs, int mode, int clockHz) {
+        mMain.bus.spiBegin(sck, mosi, miso, cs, mode, clockHz);
+    }
+
+    public static byte[] spiTransfer(byte[] tx) {
+        return mMain.bus.spiTransfer(tx);
+    }
+
+    public static void i2cBegin(int scl, int sdaOut, int sdaIn, int clockHz) {
+        mMain.bus.i2cBegin(scl, sdaOut, sdaIn, clockHz);
+    }
+
+    public static boolean i2cWrite(int addr, byte[] data) {
+        return mMain.bus.i2cWrite(addr, data);
+    }
+
+    public static byte[] i2cRead(int addr, int count) {
+        return mMain.bus.i2cRead(addr, count);
+    }
+
+    public static void oneWireBegin(int out, int in) {
+        mMain.bus.oneWireBegin(out, in);
+    }
+
+    public static boolean oneWireReset() {
+        return mMain.bus.oneWireReset();
+    }
+
+    public static boolean oneWireWrite(byte[] data) {
+        return mMain.bus.oneWireWrite(data);
+    }
+
+    public static byte[] oneWireRead(int count) {
+        return mMain.bus.oneWireRead(count);
+    }
+
+    /* Achieved bus clock and bytes per second of BusMaster.BUS_SPI and the others */
+    public static BusMaster.Stats busStats(int bus) {
+        return mMain.bus.stats(bus);
+    }
+
+    /* Input edges recorded by the IO thread with System.nanoTime() timestamps, see EdgeRing */
+    public static EdgeRing getEdges() {
+        return mMain.getEdges();
+    }
+
+    /* Number of RISING, FALLING or CHANGE edges seen on a physical input pin since the service started */
+    public static long edgeCount(int pin, int mode) {
+        return mMain.edgeCount(pin, mode);
+    }
+
+    /*
+        Like Arduino attachInterrupt(): calls handler on every RISING, FALLING or CHANGE edge of a
+        physical input pin. Handlers run one after another on the interrupt thread, never on the IO thread.
+        A pin has at most one handler, attaching another one replaces it.
+    */
+    public static void attachInterrupt(int pin, int mode, InterruptDispatcher.Handler handler) {
+        mMain.attachInterrupt(pin, mode, handler);
+    }
+
+    public static void detachInterrupt(int pin) {
+        mMain.detachInterrupt(pin);
+    }
+
+    /* Calls, lost edges and latency of the handler attached to pin, or null if there is none */
+    public static InterruptDispatcher.Stats interruptStats(int pin) {
+        return mMain.interruptStats(pin);
+    }
+
+    public static long pulseIn(int pin, int level) {
+        return pulseIn(pin, level, 1000000);
+    }
+
+    /*
+        Like Arduino pulseIn(): waits for pin to go to level, and returns how long it stayed there in
+        microseconds, measured from the edge timestamps. A pulse already in progress is skipped.
+        Returns 0 if no complete pulse was seen within timeoutUs.
+    */
+    public static long pulseIn(int pin, int level, long timeoutUs) {
+        return mMain.pulseIn(pin, level, timeoutUs);
+    }
+
+    /* Records the pins of device 0 into a file, see PinBank.startCapture() and LogicCapture.exportVcd() */
+    public static LogicCapture startCapture(File file, int maxBytes, long maxDurationMs, boolean everySample) {
+        return mMain.startCapture(file, maxBytes, maxDurationMs, everySample);
+    }
+
+    /* Replaces the pin rules of device 0, see PinRules. No rules clear the table. Returns false if a rule is invalid */
+    public static boolean setPinRules(String... rules) {
+        return mMain.setPinRules(rules);
+    }
+
+    /* Evaluation cost and reaction latency of the pin rules of device 0, null if there are none */
+    public static PinRules.Stats pinRuleStats() {
+        return mMain.pinRuleStats();
+    }
+
+    /* Debounces a physical input of device 0, see PinBank.setDebounce() */
+    public static void setDebounce(int pin, int samples, long windowUs) {
+        mMain.setDebounce(pin, samples, windowUs);
+    }
+
+    /* Drops short pulses on a physical input of device 0, see PinBank.setGlitchFilter() */
+    public static void setGlitchFilter(int pin, int samples, long minPulseUs) {
+        mMain.setGlitchFilter(pin, samples, minPulseUs);
+    }
+
+    /* Raw and filtered level changes of the filtered inputs of device 0, null if none is filtered */
+    public static InputFilter.Stats inputFilterStats() {
+        return mMain.inputFilterStats();
+    }
+
+    /*
+        Starts the TCP gateway to the pins of all adapters, see PinGateway for the protocol. With
+        loopbackOnly only apps on this device and adb forward reach it. Port 0 picks a free port.
+        Returns null if a gateway already runs or the port cannot be used.
+    */
+    public static synchronized PinGateway startGateway(int port, boolean loopbackOnly) {
+        if(mGateway != null) {
+            Log.e(TAG, "startGateway: the gateway already runs");
+            return null;
+        }
+        mGateway = PinGateway.start(port, loopbackOnly);
+        return mGateway;
+    }
+
+    public static synchronized void stopGateway() {
+        if(mGateway != null) {
+            mGateway.stop();
+            mGateway = null;
+        }
     }
 
+    /* Milliseconds since the service was loaded, monotonic */
+    public static long millis() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    /* Microseconds since the service was loaded, monotonic */
+    public static long micros() {
+        return (System.nanoTime() - mStartNanos) / 1000;
+    }
+
+    /*
+        Waits us microseconds. Long waits park first, the last SPIN_NS are spun for accuracy.
+        A sketch lets the other sketches run while it parks.
+    */
+    public static void delayMicroseconds(long us) {
+        long deadline = System.nanoTime() + us * 1000;
+        if(!SketchScheduler.sleepUntil(deadline - SPIN_NS)) {
+            long left;
+            while((left = deadline - System.nanoTime()) > SPIN_NS)
+                LockSupport.parkNanos(left - SPIN_NS);
+        }
+        while(deadline - System.nanoTime() > 0)
+            Thread.yield();
+    }
+
+    /* Sets an output pin to value once, delayUs microseconds from now. The IO thread applies it */
+    public static TimerWheel.Timer scheduleDigitalWrite(int pin, int value, long delayUs) {
+        return mMain.scheduleDigitalWrite(pin, value, delayUs);
+    }
+
+    /* Toggles an output pin every periodUs microseconds until the timer is cancelled */
+    public static TimerWheel.Timer scheduleToggle(int pin, long periodUs) {
+        return mMain.scheduleToggle(pin, periodUs);
+    }
+
+    /* Fired timers, skipped periods and how late the IO thread applied them */
+    public static TimerWheel.Stats timerStats() {
+        return mMain.timerStats();
+    }
+
+    /* Waits ms milliseconds, a sketch lets the other sketches run meanwhile */
     public static void delay(int ms) {
+        if(SketchScheduler.sleepUntil(System.nanoTime() + ms * 1000000L))
+            return;
         try {
             Thread.sleep(ms);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* analogWrite()/analogRead() through the register file. The channels are above the PWM pins */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnalogBenchmark {
+    private static final int CHANNEL = VPIN_BASE;
+    private static final AtomicInteger mNextChannel = new AtomicInteger(VPIN_BASE);
+
+    @State(Scope.Thread)
+    public static class Writer {
+        int channel;
+        int value;
+
+        @Setup
+        public void setup() {
+            channel = mNextChannel.getAndIncrement();
+            analogWrite(channel, 0);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        analogWrite(CHANNEL, 0);
+    }
+
+    // Sketch and UI sharing one channel
+    @Benchmark
+    @Group("sharedChannel")
+    @GroupThreads(2)
+    public void sharedWrite(Writer w) {
+        analogWrite(CHANNEL, ++w.value & 0xFF);
+    }
+
+    @Benchmark
+    @Group("sharedChannel")
+    @GroupThreads(2)
+    public int sharedRead() {
+        return analogRead(CHANNEL);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void ownChannelWrite(Writer w) {
+        analogWrite(w.channel, ++w.value & 0xFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int changeCountPoll() {
+        return analogChangeCount(CHANNEL);
+    }
+}
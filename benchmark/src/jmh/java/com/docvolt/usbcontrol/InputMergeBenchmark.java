@@ -0,0 +1,141 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    The IO thread's side of a poll: merging the read levels into the pins and recording edges, alone,
+    against concurrent writers, and as a whole cycle through the FTDI driver on a stubbed connection,
+    with and without the latency histograms and with a table of pin rules. The filtered variants debounce
+    two inputs and glitch filter the other two.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputMergeBenchmark {
+    private static final int OUTPUTS = (1 << PIN_TXD) | (1 << PIN_RXD) | (1 << PIN_RTS) | (1 << PIN_DTR);
+    private static final int INPUTS = ~OUTPUTS & 0xFF;
+
+    private PinBank bank;
+    private FtdiDriver driver;
+    private PinRules rules;
+    private final RegisterFile registers = new RegisterFile(0, VREG_PINS);
+    private PinBank filtered;
+    private int flip; //IO thread only
+
+    @State(Scope.Thread)
+    public static class Writer {
+        int value;
+    }
+
+    @Setup
+    public void setup() {
+        bank = new PinBank(MAX_DEVICES - 1, System.nanoTime());
+        bank.pinMode(PIN_TXD, OUTPUT);
+        bank.pinMode(PIN_RXD, OUTPUT);
+        bank.pinMode(PIN_RTS, OUTPUT);
+        bank.pinMode(PIN_DTR, OUTPUT);
+        // Every read returns the inverted levels of the previous one
+        UsbDeviceConnection connection = new UsbDeviceConnection() {
+            private int levels;
+
+            @Override
+            public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+                if (buffer != null && length > 0)
+                    buffer[0] = (byte) (levels = ~levels);
+                return length;
+            }
+        };
+        filtered = new PinBank(MAX_DEVICES - 1, System.nanoTime());
+        filtered.setDebounce(PIN_CTS, 8, 0);
+        filtered.setDebounce(PIN_DSR, 4, 2000);
+        filtered.setGlitchFilter(PIN_DCD, 3, 0);
+        filtered.setGlitchFilter(PIN_RI, 1, 500);
+        rules = PinRules.compile("DTR = !CTS & V9", "RTS = CTS | !DSR & RI", "TXD = TOGGLE ON RISING DCD", "V10 = DSR & DCD");
+        driver = new FtdiDriver();
+        driver.open(connection, new UsbDevice("bench", 0x0403, 0x6001));
+    }
+
+    @Benchmark
+    public boolean steady() {
+        return bank.mergeInputs(0xFF, INPUTS, System.nanoTime());
+    }
+
+    // Every poll sees all inputs change
+    @Benchmark
+    public boolean toggling() {
+        flip = ~flip;
+        return bank.mergeInputs(flip, INPUTS, System.nanoTime());
+    }
+
+    // The input filter on a steady read, the usual case
+    @Benchmark
+    public boolean steadyFiltered() {
+        return filtered.mergeInputs(0xFF, INPUTS, System.nanoTime());
+    }
+
+    // The input filter with all inputs bouncing on every poll, its worst case
+    @Benchmark
+    public boolean togglingFiltered() {
+        flip = ~flip;
+        return filtered.mergeInputs(flip, INPUTS, System.nanoTime());
+    }
+
+    @Benchmark
+    @Group("withWriters")
+    @GroupThreads(1)
+    public boolean mergeAgainstWriters() {
+        flip = ~flip;
+        return bank.mergeInputs(flip, INPUTS, System.nanoTime());
+    }
+
+    @Benchmark
+    @Group("withWriters")
+    @GroupThreads(2)
+    public void writer(Writer w) {
+        w.value ^= 1;
+        bank.digitalWrite(PIN_TXD, w.value);
+    }
+
+    // Write, read and merge like one IOThread cycle, minus the USB latency
+    @Benchmark
+    public boolean ioCycle() {
+        driver.write(bank.pins.get() & bank.mode & 0xFF);
+        return bank.mergeInputs(driver.read(), INPUTS, System.nanoTime());
+    }
+
+    // The same cycle with the transfer latencies recorded like the IO thread does, see IOMetrics
+    @Benchmark
+    public boolean ioCycleInstrumented() {
+        long start = System.nanoTime();
+        driver.write(bank.pins.get() & bank.mode & 0xFF);
+        long written = System.nanoTime();
+        bank.writeLatency.record(written - start);
+        int levels = driver.read();
+        long now = System.nanoTime();
+        bank.readLatency.record(now - written);
+        return bank.mergeInputs(levels, INPUTS, now);
+    }
+
+    // Evaluating four pin rules on every poll with toggling inputs
+    @Benchmark
+    public boolean ioCycleWithRules() {
+        driver.write(bank.pins.get() & bank.mode & 0xFF);
+        bank.mergeInputs(driver.read(), INPUTS, System.nanoTime());
+        return rules.apply(bank, registers);
+    }
+}
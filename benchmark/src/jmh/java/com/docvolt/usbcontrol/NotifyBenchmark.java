@@ -0,0 +1,59 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    Pin change notification: the sketch wakeup every change goes through, and the coalesced
+    onPinChange to the UI. The stubbed Handler delivers on the calling thread.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NotifyBenchmark {
+    private UsbIOService service;
+    private int value;
+    private volatile int lastPins;
+
+    @Setup
+    public void setup() {
+        pinMode(PIN_TXD, OUTPUT);
+        service = new UsbIOService();
+        service.setArduinoFunctionsCB(new UsbIOService.ArduinoListener() {
+            @Override
+            public void onPinChange(int changedMask, int pins) {
+                lastPins = pins;
+            }
+        });
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void notifyChange() {
+        UsbIOService.notifyChange();
+    }
+
+    // A pin change as the IO thread reports it, up to the listener call
+    @Benchmark
+    public void changeToListener() {
+        value ^= 1;
+        digitalWrite(PIN_TXD, value);
+        service.requestPinNotify();
+    }
+
+    // Nothing changed since the last delivery, the listener is skipped
+    @Benchmark
+    public void unchangedToListener() {
+        service.requestPinNotify();
+    }
+}
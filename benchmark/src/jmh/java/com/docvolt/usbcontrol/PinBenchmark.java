@@ -0,0 +1,93 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Contended digitalWrite()/digitalRead() on the pins of device 0. Every write that changes a pin is a
+    CAS on the shared pins word of the bank, readers only load it.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PinBenchmark {
+    private static final int OUTPUTS = 4; //TXD, RXD, RTS and CTS
+    private static final AtomicInteger mNextPin = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Writer {
+        int pin;
+        int value;
+
+        @Setup
+        public void setup() {
+            pin = mNextPin.getAndIncrement() % OUTPUTS;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        for (int pin = 0; pin < OUTPUTS; pin++)
+            pinMode(pin, OUTPUT);
+    }
+
+    // Three threads toggle their own pin while one polls an input, like sketch, UI and IO thread
+    @Benchmark
+    @Group("ownPin")
+    @GroupThreads(3)
+    public void ownPinWrite(Writer w) {
+        w.value ^= 1;
+        digitalWrite(w.pin, w.value);
+    }
+
+    @Benchmark
+    @Group("ownPin")
+    @GroupThreads(1)
+    public int ownPinRead() {
+        return digitalRead(PIN_DSR);
+    }
+
+    // Worst case, all threads fight over the same bit
+    @Benchmark
+    @Threads(4)
+    public void samePinWrite(Writer w) {
+        w.value ^= 1;
+        digitalWrite(PIN_TXD, w.value);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void virtualPinWrite(Writer w) {
+        w.value ^= 1;
+        digitalWrite(VREG_BASE + w.pin, w.value);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int virtualPinRead(Writer w) {
+        return digitalRead(VREG_BASE + w.pin);
+    }
+
+    // Four pins in one port write
+    @Benchmark
+    public void batchedWrite(Writer w) {
+        w.value ^= 1;
+        beginBatch();
+        for (int pin = 0; pin < OUTPUTS; pin++)
+            digitalWrite(pin, w.value);
+        commit();
+    }
+}
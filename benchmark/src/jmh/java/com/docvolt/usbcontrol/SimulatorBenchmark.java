@@ -0,0 +1,115 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    End to end through the real IO thread, sketch and listener on a simulated FT232R. latencyUs is the
+    time of one USB transfer, a quarter of it is added as jitter. asyncDepth 0 is the lock-step loop,
+    more keeps that many input polls in flight, see UsbIOService.setAsyncIO().
+    ioPoll: one op is one poll of the IO thread, so its throughput is the loop rate.
+    inputToCallback: from an input edge at the pin to onPinChange, and outputToInput: from
+    digitalWrite() to the level arriving on a wired input, both as latency percentiles.
+*/
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimulatorBenchmark {
+    private static final long TIMEOUT_NS = 1000000000;
+
+    @Param({"0", "1000"})
+    public int latencyUs;
+
+    @Param({"busy", "adaptive"})
+    public String policy;
+
+    @Param({"0", "4"})
+    public int asyncDepth;
+
+    private UsbIOService service;
+    private SimulatedFt232r simulator;
+    private int device;
+    private int level = 1;
+    private volatile int notifiedPins;
+    private volatile Thread waiter;
+
+    @Setup
+    public void setup() {
+        setPollPolicy("busy".equals(policy) ? PollPolicy.busy() : PollPolicy.adaptive(5));
+        setAsyncIO(asyncDepth);
+        analogWrite(Sketch.VPORT_ANALOG, 0); //Set by the UI's seek bar in the app
+        simulator = new SimulatedFt232r();
+        simulator.setLatency(latencyUs, latencyUs / 4);
+        simulator.wire(PIN_TXD, PIN_CTS);
+        service = new UsbIOService();
+        service.setArduinoFunctionsCB(new UsbIOService.ArduinoListener() {
+            @Override
+            public void onPinChange(int changedMask, int pins) {
+                notifiedPins = pins;
+                Thread t = waiter;
+                if (t != null)
+                    LockSupport.unpark(t);
+            }
+        });
+        device = service.openSimulator(simulator);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.closeDevice(device);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long ioPoll() {
+        long reads = simulator.getReads();
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (simulator.getReads() == reads && System.nanoTime() - deadline < 0)
+            Thread.yield();
+        return reads;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public boolean inputToCallback() {
+        level ^= 1;
+        simulator.setInput(PIN_RI, level);
+        return await(PIN_RI, level);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public boolean outputToInput() {
+        level ^= 1;
+        digitalWrite(PIN_TXD, level); //The sketch made TXD an output
+        return await(PIN_CTS, level);
+    }
+
+    /* Waits until the listener saw pin at level */
+    private boolean await(int pin, int level) {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        waiter = Thread.currentThread();
+        try {
+            while (((notifiedPins >> pin) & 1) != level) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                LockSupport.parkNanos(left);
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package android.content;
+
+import java.io.File;
+
+/* No system services or app storage on the desktop, broadcasts go nowhere */
+public abstract class Context {
+    public static final String USB_SERVICE = "usb";
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+    }
+
+    public void sendBroadcast(Intent intent) {
+    }
+
+    public File getFilesDir() {
+        return null;
+    }
+}
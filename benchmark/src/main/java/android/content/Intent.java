@@ -0,0 +1,31 @@
+package android.content;
+
+import java.util.HashMap;
+
+public class Intent {
+    private final String mAction;
+    private final HashMap<String, Object> mExtras = new HashMap<>();
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent putExtra(String name, Object value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        Object value = mExtras.get(name);
+        return (value instanceof Boolean) ? (Boolean) value : defaultValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getParcelableExtra(String name) {
+        return (T) mExtras.get(name);
+    }
+}
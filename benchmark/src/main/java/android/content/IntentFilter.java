@@ -0,0 +1,6 @@
+package android.content;
+
+public class IntentFilter {
+    public void addAction(String action) {
+    }
+}
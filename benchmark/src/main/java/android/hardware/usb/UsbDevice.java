@@ -0,0 +1,34 @@
+package android.hardware.usb;
+
+public class UsbDevice {
+    private final String mName;
+    private final int mVendorId;
+    private final int mProductId;
+    private final UsbInterface mInterface = new UsbInterface(0);
+
+    public UsbDevice(String name, int vendorId, int productId) {
+        mName = name;
+        mVendorId = vendorId;
+        mProductId = productId;
+    }
+
+    public String getDeviceName() {
+        return mName;
+    }
+
+    public int getVendorId() {
+        return mVendorId;
+    }
+
+    public int getProductId() {
+        return mProductId;
+    }
+
+    public int getInterfaceCount() {
+        return 1;
+    }
+
+    public UsbInterface getInterface(int index) {
+        return mInterface;
+    }
+}
@@ -0,0 +1,36 @@
+package android.hardware.usb;
+
+import java.util.concurrent.TimeoutException;
+
+/*
+    Stubbed connection: every transfer succeeds at once and IN transfers read whatever is in the
+    buffer. Override controlTransfer() to feed pin levels to a driver.
+*/
+public class UsbDeviceConnection {
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        return length;
+    }
+
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int length, int timeout) {
+        return length;
+    }
+
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length, int timeout) {
+        return length;
+    }
+
+    public boolean claimInterface(UsbInterface usbInterface, boolean force) {
+        return true;
+    }
+
+    public boolean releaseInterface(UsbInterface usbInterface) {
+        return true;
+    }
+
+    public UsbRequest requestWait(long timeout) throws TimeoutException {
+        throw new TimeoutException();
+    }
+
+    public void close() {
+    }
+}
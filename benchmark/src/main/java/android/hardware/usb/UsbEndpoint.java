@@ -0,0 +1,23 @@
+package android.hardware.usb;
+
+public class UsbEndpoint {
+    private final int mType;
+    private final int mDirection;
+
+    public UsbEndpoint(int type, int direction) {
+        mType = type;
+        mDirection = direction;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getDirection() {
+        return mDirection;
+    }
+
+    public int getMaxPacketSize() {
+        return 64;
+    }
+}
@@ -0,0 +1,25 @@
+package android.hardware.usb;
+
+public class UsbInterface {
+    private final int mId;
+    private final UsbEndpoint[] mEndpoints = {
+            new UsbEndpoint(UsbConstants.USB_ENDPOINT_XFER_BULK, UsbConstants.USB_DIR_IN),
+            new UsbEndpoint(UsbConstants.USB_ENDPOINT_XFER_BULK, UsbConstants.USB_DIR_OUT)
+    };
+
+    public UsbInterface(int id) {
+        mId = id;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getEndpointCount() {
+        return mEndpoints.length;
+    }
+
+    public UsbEndpoint getEndpoint(int index) {
+        return mEndpoints[index];
+    }
+}
@@ -0,0 +1,37 @@
+package android.hardware.usb;
+
+import java.nio.ByteBuffer;
+
+/* Never completes, the benchmarks run on API 14 where the FTDI pipeline is off */
+public class UsbRequest {
+    private Object mClientData;
+    private UsbEndpoint mEndpoint;
+
+    public boolean initialize(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        mEndpoint = endpoint;
+        return true;
+    }
+
+    public boolean queue(ByteBuffer buffer) {
+        return true;
+    }
+
+    public boolean cancel() {
+        return true;
+    }
+
+    public void close() {
+    }
+
+    public UsbEndpoint getEndpoint() {
+        return mEndpoint;
+    }
+
+    public Object getClientData() {
+        return mClientData;
+    }
+
+    public void setClientData(Object data) {
+        mClientData = data;
+    }
+}
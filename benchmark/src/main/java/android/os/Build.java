@@ -0,0 +1,13 @@
+package android.os;
+
+public class Build {
+    public static class VERSION {
+        // Choreographer needs a display, so the notification path takes the Handler only branch
+        public static final int SDK_INT = 14;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+        public static final int O = 26;
+    }
+}
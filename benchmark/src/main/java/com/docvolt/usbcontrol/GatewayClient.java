@@ -0,0 +1,130 @@
+package com.docvolt.usbcontrol;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/*
+    Blocking client of the PinGateway protocol for desktop test rigs. Reach a gateway on the tablet
+    with adb forward tcp:5711 tcp:5711. One client is meant for one thread.
+    PIN_CHANGE frames that arrive while a reply is awaited are queued for nextChange().
+*/
+public final class GatewayClient implements Closeable {
+    private final SocketChannel mChannel;
+    private final ByteBuffer mOut = ByteBuffer.allocate(PinGateway.MAX_FRAME + 2);
+    private final ByteBuffer mIn = ByteBuffer.allocate(4 * PinGateway.MAX_FRAME);
+    private final ArrayDeque<int[]> mChanges = new ArrayDeque<>();
+
+    public GatewayClient(String host, int port) throws IOException {
+        mChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        mChannel.socket().setTcpNoDelay(true);
+        mIn.flip();
+    }
+
+    /* Writes several pins in one frame, pins[i] gets values[i] */
+    public void writePins(int device, int[] pins, int[] values) throws IOException {
+        frame(PinGateway.WRITE_PINS, 2 + 3 * pins.length).put((byte) device).put((byte) pins.length);
+        for (int i = 0; i < pins.length; i++)
+            mOut.putShort((short) pins[i]).put((byte) values[i]);
+        send();
+    }
+
+    public void writePort(int device, int mask, int values) throws IOException {
+        frame(PinGateway.WRITE_PORT, 9).put((byte) device).putInt(mask).putInt(values);
+        send();
+    }
+
+    /* Levels of all 32 pins, bit n is digitalRead(n) */
+    public int readPins(int device) throws IOException {
+        frame(PinGateway.READ_PINS, 1).put((byte) device);
+        send();
+        ByteBuffer reply = await(PinGateway.PINS);
+        reply.get(); //device
+        return reply.getInt();
+    }
+
+    public int readAnalog(int channel) throws IOException {
+        frame(PinGateway.READ_ANALOG, 2).putShort((short) channel);
+        send();
+        ByteBuffer reply = await(PinGateway.ANALOG);
+        reply.getShort(); //channel
+        return reply.getInt();
+    }
+
+    /* Asks for PIN_CHANGE frames when a pin in mask changes, 0 ends the subscription */
+    public void subscribe(int device, int mask) throws IOException {
+        frame(PinGateway.SUBSCRIBE, 5).put((byte) device).putInt(mask);
+        send();
+    }
+
+    /* Next pin change as {device, changed, levels}, waits for one if none is queued */
+    public int[] nextChange() throws IOException {
+        while(mChanges.isEmpty())
+            dispatch(receive());
+        return mChanges.poll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private ByteBuffer frame(int type, int length) {
+        mOut.clear();
+        return mOut.putShort((short) (length + 1)).put((byte) type);
+    }
+
+    private void send() throws IOException {
+        mOut.flip();
+        while(mOut.hasRemaining())
+            mChannel.write(mOut);
+    }
+
+    /* Payload of the next frame of that type, pushes in between are queued */
+    private ByteBuffer await(int type) throws IOException {
+        while(true) {
+            ByteBuffer frame = receive();
+            int received = frame.get() & 0xFF;
+            if(received == type)
+                return frame;
+            if(received == PinGateway.ERROR)
+                throw new IOException("gateway rejected request " + (frame.get() & 0xFF));
+            frame.position(frame.position() - 1);
+            dispatch(frame);
+        }
+    }
+
+    private void dispatch(ByteBuffer frame) throws IOException {
+        int type = frame.get() & 0xFF;
+        if(type == PinGateway.PIN_CHANGE)
+            mChanges.add(new int[]{frame.get() & 0xFF, frame.getInt(), frame.getInt()});
+        else if(type == PinGateway.ERROR)
+            throw new IOException("gateway rejected request " + (frame.get() & 0xFF));
+    }
+
+    /* Next frame without its length, positioned at the type */
+    private ByteBuffer receive() throws IOException {
+        fill(2);
+        int length = mIn.getShort() & 0xFFFF;
+        fill(length);
+        ByteBuffer frame = mIn.slice();
+        frame.limit(length);
+        mIn.position(mIn.position() + length);
+        return frame;
+    }
+
+    private void fill(int bytes) throws IOException {
+        if(mIn.remaining() >= bytes)
+            return;
+        mIn.compact();
+        while(mIn.position() < bytes) {
+            if(mChannel.read(mIn) < 0)
+                throw new EOFException("gateway closed the connection");
+        }
+        mIn.flip();
+    }
+}
@@ -0,0 +1,135 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Load generator of the pin gateway. Every client writes output and virtual pins in batched frames
+    and reads the pins back, one more client subscribes to the pin changes.
+    ./gradlew :benchmark:gatewayLoad runs against a service with a simulated FT232R in this JVM,
+    -PgatewayArgs="--host 127.0.0.1 --port 5711" against a tablet reached with adb forward.
+    Options: --clients n (8), --seconds n (10), --latency us of the simulated transfers (1000)
+*/
+public final class GatewayLoad {
+    private static final int MAX_SAMPLES = 1 << 18; //Round trips kept per client
+    private static final int[] OUTPUTS = {PIN_TXD, PIN_RXD, PIN_RTS, PIN_DTR};
+
+    public static void main(String[] args) throws Exception {
+        String host = null;
+        int port = PinGateway.DEFAULT_PORT;
+        int clients = 8;
+        int seconds = 10;
+        int latencyUs = 1000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--host")) host = args[i + 1];
+            else if(args[i].equals("--port")) port = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--clients")) clients = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--seconds")) seconds = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--latency")) latencyUs = Integer.parseInt(args[i + 1]);
+        }
+
+        // Without a host the gateway runs here, on a simulated adapter
+        SimulatedFt232r simulator = null;
+        PinGateway gateway = null;
+        if(host == null) {
+            analogWrite(Sketch.VPORT_ANALOG, 0);
+            simulator = new SimulatedFt232r();
+            simulator.setLatency(latencyUs, latencyUs / 10);
+            new UsbIOService().openSimulator(simulator);
+            gateway = startGateway(0, true);
+            if(gateway == null)
+                throw new IOException("gateway did not start");
+            host = "127.0.0.1";
+            port = gateway.getPort();
+            Thread.sleep(200); //Let the sketch set up its outputs
+        }
+
+        final String gatewayHost = host;
+        final int gatewayPort = port;
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong writeFrames = new AtomicLong();
+        final AtomicLong changes = new AtomicLong();
+        final long[][] samples = new long[clients][MAX_SAMPLES];
+        final int[] counts = new int[clients];
+
+        final GatewayClient subscriber = new GatewayClient(gatewayHost, gatewayPort);
+        subscriber.subscribe(0, 0xFFFFFFFF);
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        subscriber.nextChange();
+                        changes.incrementAndGet();
+                    }
+                } catch (IOException ignored) {
+                    //Closed at the end of the run
+                }
+            }
+        });
+        listener.start();
+
+        long writesBefore = (simulator == null) ? 0 : simulator.getWrites();
+        long framesBefore = (gateway == null) ? 0 : gateway.getFrames();
+        long roundsBefore = (gateway == null) ? 0 : gateway.getRounds();
+        Thread[] workers = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final int id = c;
+            workers[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int vpin = VREG_BASE + id; //Register pins, no sketch reacts to them
+                    int[] pins = {OUTPUTS[id % OUTPUTS.length], vpin};
+                    int[] values = new int[2];
+                    try (GatewayClient client = new GatewayClient(gatewayHost, gatewayPort)) {
+                        for (int n = 0; System.nanoTime() < deadline; n++) {
+                            values[0] = n & 1;
+                            values[1] = (n >> 1) & 1;
+                            client.writePins(0, pins, values);
+                            client.writePort(0, 1 << OUTPUTS[(id + 1) % OUTPUTS.length], (n & 1) << OUTPUTS[(id + 1) % OUTPUTS.length]);
+                            writeFrames.addAndGet(2);
+                            long start = System.nanoTime();
+                            client.readPins(0);
+                            if(counts[id] < MAX_SAMPLES)
+                                samples[id][counts[id]++] = System.nanoTime() - start;
+                        }
+                    } catch (IOException e) {
+                        System.err.println("client " + id + ": " + e);
+                    }
+                }
+            });
+            workers[c].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        subscriber.close();
+        listener.join();
+
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        long[] all = new long[total];
+        int at = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(samples[c], 0, all, at, counts[c]);
+            at += counts[c];
+        }
+        Arrays.sort(all);
+        System.out.printf("%d clients, %d s: %.0f write frames/s, %.0f reads/s, %d pin change pushes%n",
+                clients, seconds, writeFrames.get() / (double) seconds, total / (double) seconds, changes.get());
+        if(total > 0)
+            System.out.printf("read round trip: median %d us, 99%% %d us, max %d us%n",
+                    all[total / 2] / 1000, all[(int) (total * 0.99)] / 1000, all[total - 1] / 1000);
+        if(gateway != null) {
+            long frames = gateway.getFrames() - framesBefore;
+            long rounds = gateway.getRounds() - roundsBefore;
+            long usbWrites = simulator.getWrites() - writesBefore;
+            System.out.printf("gateway: %.1f frames per selector round, %d USB writes for %d write frames%n",
+                    frames / (double) Math.max(1, rounds), usbWrites, writeFrames.get());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,104 @@
+package com.docvolt.usbcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/*
+    Reads are fed one per step as a string of levels of pin 3, the results are compared the same way.
+    pending() strings have a p for every read after which the pin still settles.
+*/
+public class InputFilterTest {
+    private static final int PIN = 3;
+    private static final long MS = 1000000;
+
+    @Test
+    public void glitchCountLongerThanWindow() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.GLITCH, 5, 100);
+        assertEquals("1111100000000000", run(filter, "1000000000000000", MS));
+        assertEquals(0, filter.pending());
+    }
+
+    @Test
+    public void glitchWindowLongerThanCount() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.GLITCH, 2, 10000);
+        assertEquals("1111111111100000", run(filter, "1000000000000000", MS));
+        assertEquals(0, filter.pending());
+    }
+
+    @Test
+    public void debounceCountLongerThanWindow() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.DEBOUNCE, 3, 100);
+        assertEquals("100000000111111", run(filter, "101000000111111", MS));
+        assertEquals(".pppp....pp....", pending(InputFilter.with(null, PIN, InputFilter.DEBOUNCE, 3, 100), "101000000111111", MS));
+    }
+
+    @Test
+    public void debounceWindowLongerThanCount() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.DEBOUNCE, 2, 5000);
+        assertEquals("1000000000111", run(filter, "1010000000111", MS));
+        assertEquals(".ppppppp..ppp", pending(InputFilter.with(null, PIN, InputFilter.DEBOUNCE, 2, 5000), "1010000000111", MS));
+    }
+
+    @Test
+    public void debounceTakesTheFirstEdgeOfABounce() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.DEBOUNCE, 4, 0);
+        assertEquals("11000000000001111111111", run(filter, "11010010000001101111111", MS));
+        InputFilter.Stats stats = filter.stats();
+        assertEquals(8, stats.raw[PIN]);
+        assertEquals(2, stats.filtered[PIN]);
+        assertEquals(6, stats.suppressed());
+    }
+
+    @Test
+    public void glitchDropsShortPulses() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.GLITCH, 3, 0);
+        assertEquals("11111111111111000000", run(filter, "11011001111100000000", MS));
+        assertEquals(1, filter.stats().filtered[PIN]);
+    }
+
+    @Test
+    public void glitchWindowDropsPulsesShorterThanIt() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.GLITCH, 1, 2500);
+        assertEquals("1111111111100000", run(filter, "1001001100000000", MS)); //Settles 2.5 ms after the last change
+    }
+
+    @Test
+    public void otherPinsPassThrough() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.GLITCH, 5, 0);
+        filter.apply(0xFF, 0xFF, 0);
+        assertEquals(0xF8, filter.apply(0xF0, 0xFF, MS)); //Pin 3 waits, pins 4-7 follow
+        assertEquals(0x08, filter.pending());
+        assertEquals(0x00, filter.apply(0x00, 0xF7, 2 * MS) & 0xF7); //Outputs are not filtered
+    }
+
+    @Test
+    public void removingTheLastFilterGivesNone() {
+        InputFilter filter = InputFilter.with(null, PIN, InputFilter.DEBOUNCE, 4, 0);
+        assertNull(InputFilter.with(filter, PIN, InputFilter.NONE, 0, 0));
+    }
+
+    /* Levels of the pin after every read, reads are step ns apart */
+    private static String run(InputFilter filter, String levels, long step) {
+        StringBuilder out = new StringBuilder();
+        long now = 1000 * MS;
+        for (int i = 0; i < levels.length(); i++, now += step)
+            out.append((filter.apply(raw(levels, i), 0xFF, now) >> PIN) & 1);
+        return out.toString();
+    }
+
+    private static String pending(InputFilter filter, String levels, long step) {
+        StringBuilder out = new StringBuilder();
+        long now = 1000 * MS;
+        for (int i = 0; i < levels.length(); i++, now += step) {
+            filter.apply(raw(levels, i), 0xFF, now);
+            out.append(filter.pending() != 0 ? 'p' : '.');
+        }
+        return out.toString();
+    }
+
+    private static int raw(String levels, int i) {
+        return (levels.charAt(i) == '1') ? 0xFF : 0xFF & ~(1 << PIN);
+    }
+}
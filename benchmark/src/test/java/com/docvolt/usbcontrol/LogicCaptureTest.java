@@ -0,0 +1,110 @@
+package com.docvolt.usbcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogicCaptureTest {
+    private static final int HEADER_SIZE = 32;
+
+    private PinBank bank;
+    private File file;
+    private File vcd;
+
+    @Before
+    public void setUp() throws IOException {
+        bank = new PinBank(0, System.nanoTime());
+        file = File.createTempFile("capture", ".ftla");
+        vcd = File.createTempFile("capture", ".vcd");
+    }
+
+    @After
+    public void tearDown() {
+        LogicCapture capture = bank.capture;
+        if (capture != null)
+            capture.stop();
+        file.delete();
+        vcd.delete();
+    }
+
+    @Test
+    public void recordsChangesAndExportsVcd() throws IOException {
+        LogicCapture capture = bank.startCapture(file, 4096, 0, false);
+        assertNotNull(capture);
+        long t = System.nanoTime() + 1000000;
+        capture.sample(t, 0xFF);
+        capture.sample(t + 1000, 0xFF); //No change, not recorded
+        capture.sample(t + 2000, 0xFE);
+        capture.sample(t + 6000, 0xFF);
+        assertEquals(3, capture.getRecords());
+        capture.stop();
+        assertFalse(capture.isRunning());
+        assertNull(bank.capture);
+        assertTrue(file.length() > HEADER_SIZE && file.length() < 4096);
+
+        assertTrue(LogicCapture.exportVcd(file, vcd));
+        List<String> lines = Files.readAllLines(vcd.toPath(), StandardCharsets.US_ASCII);
+        assertTrue(lines.contains("$var wire 1 ! TXD $end"));
+        assertTrue(lines.contains("$var wire 1 ( RI $end"));
+        List<Long> times = new ArrayList<>();
+        for (String line : lines)
+            if (line.startsWith("#"))
+                times.add(Long.parseLong(line.substring(1)));
+        assertEquals(4, times.size()); //Three records and the end time
+        assertEquals(2000, times.get(1) - times.get(0));
+        assertEquals(4000, times.get(2) - times.get(1));
+        int txd = lines.indexOf("#" + times.get(1));
+        assertEquals("0!", lines.get(txd + 1));
+        assertEquals("1!", lines.get(txd + 3));
+    }
+
+    @Test
+    public void endsOnItsOwnWhenFull() throws InterruptedException {
+        int maxBytes = HEADER_SIZE + 3 * 11;
+        LogicCapture capture = bank.startCapture(file, maxBytes, 0, true);
+        assertNotNull(capture);
+        long t = System.nanoTime();
+        for (int i = 0; i < 100; i++)
+            capture.sample(t + i * 1000, i & 0xFF);
+        assertFalse(capture.isRunning());
+        assertNull(bank.capture);
+        long records = capture.getRecords();
+        assertTrue(records >= 3 && records < 100);
+        long deadline = System.nanoTime() + 1000000000L;
+        while (file.length() == maxBytes && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertTrue("file not cut, " + file.length() + " bytes", file.length() < maxBytes);
+        assertNotNull(bank.startCapture(file, maxBytes, 0, true)); //The bank takes a new capture
+    }
+
+    @Test
+    public void endsOnItsOwnAfterTheDuration() {
+        LogicCapture capture = bank.startCapture(file, 4096, 1, false);
+        assertNotNull(capture);
+        long t = System.nanoTime();
+        capture.sample(t, 0x01);
+        capture.sample(t + 5000000, 0x02);
+        assertFalse(capture.isRunning());
+        assertNull(bank.capture);
+        assertEquals(1, capture.getRecords());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Files.write(file.toPath(), new byte[64]);
+        assertFalse(LogicCapture.exportVcd(file, vcd));
+    }
+}
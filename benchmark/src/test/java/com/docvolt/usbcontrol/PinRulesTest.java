@@ -0,0 +1,151 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PinRulesTest {
+    private PinBank bank;
+    private RegisterFile registers;
+
+    @Before
+    public void setUp() {
+        bank = new PinBank(0, System.nanoTime());
+        registers = new RegisterFile(0, VREG_PINS);
+        bank.pinMode(PIN_DTR, OUTPUT);
+        bank.pinMode(PIN_RTS, OUTPUT);
+    }
+
+    @Test
+    public void compilesTheDocumentedSyntax() {
+        assertNotNull(PinRules.compile("DTR = !CTS & V9"));
+        assertNotNull(PinRules.compile("RTS = DSR | !DCD & RI"));
+        assertNotNull(PinRules.compile("RTS = HIGH ON RISING DCD", "dtr = toggle on change cts"));
+        assertNotNull(PinRules.compile("DTR = NOT CTS AND 3 OR V12"));
+        assertNotNull(PinRules.compile("DTR = !!CTS"));
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        assertNull(PinRules.compile("DTR"));
+        assertNull(PinRules.compile("= CTS"));
+        assertNull(PinRules.compile("FOO = CTS"));
+        assertNull(PinRules.compile("DTR = CTS &"));
+        assertNull(PinRules.compile("DTR = CTS | "));
+        assertNull(PinRules.compile("DTR = CTS RI"));
+        assertNull(PinRules.compile("DTR = 32")); //Numbers are pins of the bank
+        assertNull(PinRules.compile("DTR = V" + VREG_PINS));
+        assertNull(PinRules.compile("RTS = HIGH ON LEVEL DCD"));
+        assertNull(PinRules.compile("RTS = UP ON RISING DCD"));
+        assertNull(PinRules.compile("DTR = CTS", "RTS = CTS &"));
+    }
+
+    @Test
+    public void evaluatesAndBeforeOr() {
+        PinRules rules = PinRules.compile("RTS = DSR | !DCD & RI");
+        set(PIN_DSR, 0);
+        set(PIN_DCD, 1);
+        set(PIN_RI, 1);
+        rules.apply(bank, registers);
+        assertEquals(0, level(PIN_RTS));
+        set(PIN_DCD, 0);
+        assertTrue(rules.apply(bank, registers));
+        assertEquals(1, level(PIN_RTS));
+        set(PIN_RI, 0);
+        set(PIN_DSR, 1);
+        assertFalse(rules.apply(bank, registers)); //Still high through DSR
+        assertEquals(1, level(PIN_RTS));
+    }
+
+    @Test
+    public void readsRegisterPins() {
+        PinRules rules = PinRules.compile("DTR = !CTS & V9");
+        set(PIN_CTS, 0);
+        set(9, 1); //Virtual pin 9 of the bank is not V9
+        rules.apply(bank, registers);
+        assertEquals(0, level(PIN_DTR));
+        registers.writeDigital(9, true);
+        assertTrue(rules.apply(bank, registers));
+        assertEquals(1, level(PIN_DTR));
+    }
+
+    @Test
+    public void vPinsNeverAddressTheBank() {
+        PinRules rules = PinRules.compile("DTR = V3"); //Once read CTS, pin 3
+        set(PIN_CTS, 1);
+        rules.apply(bank, registers);
+        assertEquals(0, level(PIN_DTR));
+        assertNull(PinRules.compile("DTR = V"));
+        assertNull(PinRules.compile("DTR = V-1"));
+        assertNull(PinRules.compile("DTR = V+3"));
+        assertNull(PinRules.compile("DTR = VCTS"));
+    }
+
+    @Test
+    public void laterRulesSeeEarlierTargets() {
+        PinRules rules = PinRules.compile("10 = CTS", "V10 = 10", "DTR = V10");
+        set(PIN_CTS, 1);
+        assertTrue(rules.apply(bank, registers));
+        assertEquals(1, level(10));
+        assertTrue(registers.readDigital(10));
+        assertEquals(1, level(PIN_DTR));
+        set(PIN_CTS, 0);
+        assertTrue(rules.apply(bank, registers));
+        assertFalse(registers.readDigital(10));
+        assertEquals(0, level(PIN_DTR));
+    }
+
+    @Test
+    public void limitsTheRegisterPinsOfATable() {
+        StringBuilder rule = new StringBuilder("DTR = V0");
+        for (int i = 1; i < 32; i++)
+            rule.append(" | V").append(i * 100);
+        assertNotNull(PinRules.compile(rule.toString()));
+        assertNull(PinRules.compile(rule.append(" | V4000").toString()));
+    }
+
+    @Test
+    public void actsOnEdges() {
+        PinRules rules = PinRules.compile("RTS = TOGGLE ON RISING DCD", "DTR = LOW ON FALLING DCD");
+        set(PIN_DCD, 0);
+        set(PIN_DTR, 1);
+        rules.apply(bank, registers); //First evaluation sees no edge
+        assertEquals(0, level(PIN_RTS));
+        set(PIN_DCD, 1);
+        rules.apply(bank, registers);
+        assertEquals(1, level(PIN_RTS));
+        rules.apply(bank, registers); //Level stays, no edge
+        assertEquals(1, level(PIN_RTS));
+        assertEquals(1, level(PIN_DTR));
+        set(PIN_DCD, 0);
+        rules.apply(bank, registers);
+        assertEquals(1, level(PIN_RTS));
+        assertEquals(0, level(PIN_DTR));
+        set(PIN_DCD, 1);
+        rules.apply(bank, registers);
+        assertEquals(0, level(PIN_RTS));
+    }
+
+    @Test
+    public void doesNotDriveInputs() {
+        PinRules rules = PinRules.compile("TXD = !CTS");
+        set(PIN_CTS, 1);
+        assertFalse(rules.apply(bank, registers));
+        assertEquals(1, level(PIN_TXD)); //Released input, pulled up
+    }
+
+    /* Sets the level of a pin in the bank like a read or a write would */
+    private void set(int pin, int level) {
+        bank.updatePins(1 << pin, (level == 0) ? ~0 : 0);
+    }
+
+    private int level(int pin) {
+        return ((bank.pins.get() >> pin) & 1) == 0 ? 1 : 0;
+    }
+}
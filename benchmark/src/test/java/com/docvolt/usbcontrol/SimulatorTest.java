@@ -0,0 +1,180 @@
+package com.docvolt.usbcontrol;
+
+import static com.docvolt.usbcontrol.UsbIOService.*;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Regression limits of the real IO thread, sketch and listener on a simulated FT232R with 1 ms
+    transfers. The floors and ceilings leave room for a loaded build machine, a run on a desktop is
+    several times better. SimulatorBenchmark measures the same paths without limits.
+*/
+public class SimulatorTest {
+    private static final int LATENCY_US = 1000;
+    private static final int JITTER_US = 250;
+    private static final long WARMUP_MS = 300;
+    private static final long MEASURE_MS = 1000;
+    private static final int EDGES = 200;
+    private static final long TIMEOUT_NS = 1000000000;
+
+    private static final float MIN_LOCKSTEP_POLLS = 300; //One read round trip per poll, about 900/s
+    private static final float MIN_PIPELINED_POLLS = 1200; //4 polls in flight, about 3400/s
+    private static final long MAX_INPUT_TO_CALLBACK_P99_US = 10000;
+    private static final long MAX_OUTPUT_TO_INPUT_P99_US = 15000;
+    private static final int BACKOFF_BUDGET_MS = 20; //A quiet adapter backs off to about 50 polls/s
+    private static final float MAX_QUIET_POLLS = 150;
+    private static final float MIN_BUSY_POLLS = 300;
+
+    private UsbIOService service;
+    private SimulatedFt232r simulator;
+    private int device = -1;
+    private volatile int notifiedPins;
+    private volatile Thread waiter;
+
+    @Before
+    public void setUp() {
+        setPollPolicy(PollPolicy.busy());
+        setAsyncIO(0);
+        analogWrite(Sketch.VPORT_ANALOG, 0); //Set by the UI's seek bar in the app
+        simulator = new SimulatedFt232r();
+        simulator.setLatency(LATENCY_US, JITTER_US);
+        simulator.wire(PIN_TXD, PIN_CTS);
+        service = new UsbIOService();
+        service.setArduinoFunctionsCB(new UsbIOService.ArduinoListener() {
+            @Override
+            public void onPinChange(int changedMask, int pins) {
+                notifiedPins = pins;
+                Thread t = waiter;
+                if (t != null)
+                    LockSupport.unpark(t);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (device >= 0)
+            service.closeDevice(device);
+        setAsyncIO(0);
+    }
+
+    @Test
+    public void lockStepLoopRate() throws InterruptedException {
+        open();
+        float rate = pollRate();
+        assertTrue("lock-step loop at " + rate + " polls/s", rate >= MIN_LOCKSTEP_POLLS);
+    }
+
+    @Test
+    public void pipelinedLoopRate() throws InterruptedException {
+        setAsyncIO(4);
+        open();
+        float rate = pollRate();
+        assertTrue("pipelined loop at " + rate + " polls/s", rate >= MIN_PIPELINED_POLLS);
+    }
+
+    @Test
+    public void inputToCallbackLatency() throws InterruptedException {
+        open();
+        LatencyHistogram latency = new LatencyHistogram();
+        int level = 1;
+        for (int i = 0; i < EDGES; i++) {
+            level ^= 1;
+            long start = System.nanoTime();
+            simulator.setInput(PIN_RI, level);
+            assertTrue("no callback for RI " + level, await(PIN_RI, level));
+            latency.record(System.nanoTime() - start);
+        }
+        long p99 = latency.snapshot().percentileNanos(0.99) / 1000;
+        assertTrue("input to callback p99 " + p99 + " us", p99 <= MAX_INPUT_TO_CALLBACK_P99_US);
+    }
+
+    @Test
+    public void outputToInputLatency() throws InterruptedException {
+        open();
+        LatencyHistogram latency = new LatencyHistogram();
+        int level = 1;
+        for (int i = 0; i < EDGES; i++) {
+            level ^= 1;
+            long start = System.nanoTime();
+            digitalWrite(PIN_TXD, level); //The sketch made TXD an output
+            assertTrue("no callback for CTS " + level, await(PIN_CTS, level));
+            latency.record(System.nanoTime() - start);
+        }
+        long p99 = latency.snapshot().percentileNanos(0.99) / 1000;
+        assertTrue("output to input p99 " + p99 + " us", p99 <= MAX_OUTPUT_TO_INPUT_P99_US);
+    }
+
+    @Test
+    public void pollBackoffIsPerAdapter() throws InterruptedException {
+        setPollPolicy(PollPolicy.adaptive(BACKOFF_BUDGET_MS));
+        open(); //Device 0, its inputs keep changing
+        SimulatedFt232r quiet = new SimulatedFt232r();
+        quiet.setLatency(LATENCY_US, JITTER_US);
+        int quietDevice = service.openSimulator(quiet);
+        assertTrue("no free device number", quietDevice >= 0);
+        final AtomicBoolean toggling = new AtomicBoolean(true);
+        Thread toggler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int level = 0; toggling.get(); level ^= 1) {
+                    simulator.setInput(PIN_RI, level);
+                    LockSupport.parkNanos(200000);
+                }
+            }
+        });
+        toggler.start();
+        try {
+            Thread.sleep(WARMUP_MS);
+            long busyReads = simulator.getReads(), quietReads = quiet.getReads();
+            long start = System.nanoTime();
+            Thread.sleep(MEASURE_MS);
+            float seconds = (System.nanoTime() - start) / 1e9f;
+            float busyRate = (simulator.getReads() - busyReads) / seconds;
+            float quietRate = (quiet.getReads() - quietReads) / seconds;
+            assertTrue("changing adapter at " + busyRate + " polls/s", busyRate >= MIN_BUSY_POLLS);
+            assertTrue("quiet adapter at " + quietRate + " polls/s", quietRate <= MAX_QUIET_POLLS);
+        } finally {
+            toggling.set(false);
+            toggler.join();
+            service.closeDevice(quietDevice);
+        }
+    }
+
+    private void open() throws InterruptedException {
+        device = service.openSimulator(simulator);
+        assertTrue("no free device number", device >= 0);
+        Thread.sleep(WARMUP_MS);
+    }
+
+    /* Reads of the simulator per second over MEASURE_MS */
+    private float pollRate() throws InterruptedException {
+        long reads = simulator.getReads();
+        long start = System.nanoTime();
+        Thread.sleep(MEASURE_MS);
+        return (simulator.getReads() - reads) * 1e9f / (System.nanoTime() - start);
+    }
+
+    /* Waits until the listener saw pin at level */
+    private boolean await(int pin, int level) {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        waiter = Thread.currentThread();
+        try {
+            while (((notifiedPins >> pin) & 1) != level) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                LockSupport.parkNanos(left);
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+}
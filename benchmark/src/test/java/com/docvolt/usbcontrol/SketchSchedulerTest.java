@@ -0,0 +1,54 @@
+package com.docvolt.usbcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SketchSchedulerTest {
+
+    /* loop() takes a while and ignores stop(), like a sketch busy on a bus */
+    private static final class SlowSketch extends ArduinoSketch {
+        final AtomicInteger inLoop = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger setups = new AtomicInteger();
+
+        @Override
+        public void setup() {
+            setups.incrementAndGet();
+        }
+
+        @Override
+        public void loop() {
+            if(inLoop.incrementAndGet() > 1)
+                overlaps.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inLoop.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void restartWaitsForTheStoppedLoop() throws InterruptedException {
+        SketchScheduler scheduler = new SketchScheduler(2);
+        SlowSketch sketch = new SlowSketch();
+        assertNotNull(scheduler.add(sketch, 0, UsbIOService.VPIN_BASE, 0));
+        for (int i = 0; i < 5; i++) {
+            scheduler.start();
+            Thread.sleep(20);
+            scheduler.stop(); //loop() of the old runner is still sleeping
+        }
+        scheduler.start();
+        Thread.sleep(200);
+        scheduler.stop();
+        Thread.sleep(100);
+        assertEquals(0, sketch.overlaps.get());
+        assertTrue(sketch.setups.get() >= 2);
+    }
+}
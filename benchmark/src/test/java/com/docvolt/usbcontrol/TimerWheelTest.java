@@ -0,0 +1,116 @@
+package com.docvolt.usbcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+    private static final long MS = 1000000;
+    private static final long T0 = 1000 * MS;
+
+    @Test
+    public void oneShotFiresAtItsDeadline() {
+        TimerWheel wheel = new TimerWheel(T0);
+        TimerWheel.Timer timer = wheel.schedule(T0 + 5 * MS, 0, 0x01, TimerWheel.ACTION_HIGH);
+        assertEquals(5 * MS, wheel.nanosUntilNext(T0));
+        assertFalse(wheel.advance(T0 + 5 * MS - 1));
+        assertTrue(wheel.advance(T0 + 5 * MS));
+        assertEquals(0x01, wheel.highMask);
+        assertEquals(1, timer.getFired());
+        assertFalse(wheel.advance(T0 + 10 * MS));
+        assertEquals(Long.MAX_VALUE, wheel.nanosUntilNext(T0 + 10 * MS));
+    }
+
+    @Test
+    public void highAndLowMasksStayDisjoint() {
+        TimerWheel wheel = new TimerWheel(T0);
+        wheel.schedule(T0 + MS, 0, 0x03, TimerWheel.ACTION_HIGH);
+        wheel.schedule(T0 + MS, 0, 0x02, TimerWheel.ACTION_LOW);
+        wheel.schedule(T0 + MS, 0, 0x04, TimerWheel.ACTION_TOGGLE);
+        assertTrue(wheel.advance(T0 + MS));
+        assertEquals(0, wheel.highMask & wheel.lowMask);
+        assertEquals(0x01, wheel.highMask & 0x01);
+        assertEquals(0x04, wheel.toggleMask);
+        assertEquals(0x03, wheel.highMask | wheel.lowMask);
+    }
+
+    @Test
+    public void periodicTimerCountsMissedPeriods() {
+        TimerWheel wheel = new TimerWheel(T0);
+        TimerWheel.Timer timer = wheel.schedule(T0 + MS, MS, 0x01, TimerWheel.ACTION_TOGGLE);
+        for (int i = 1; i <= 10; i++)
+            assertTrue(wheel.advance(T0 + i * MS));
+        assertEquals(10, timer.getFired());
+        assertEquals(MS, wheel.nanosUntilNext(T0 + 10 * MS));
+        assertTrue(wheel.advance(T0 + 13 * MS + MS / 2)); //Two periods skipped
+        assertEquals(11, timer.getFired());
+        assertEquals(2, wheel.stats().missed);
+        assertEquals(MS / 2, wheel.nanosUntilNext(T0 + 13 * MS + MS / 2));
+    }
+
+    @Test
+    public void nextDeadlineAfterFiring() {
+        TimerWheel wheel = new TimerWheel(T0);
+        wheel.schedule(T0 + MS, 0, 0x01, TimerWheel.ACTION_HIGH);
+        wheel.schedule(T0 + 40 * MS, 0, 0x02, TimerWheel.ACTION_HIGH);
+        wheel.schedule(T0 + 500 * MS, 0, 0x04, TimerWheel.ACTION_HIGH); //Several revolutions ahead
+        assertTrue(wheel.advance(T0 + MS));
+        assertEquals(39 * MS, wheel.nanosUntilNext(T0 + MS));
+        assertTrue(wheel.advance(T0 + 40 * MS));
+        assertEquals(0x02, wheel.highMask);
+        assertEquals(460 * MS, wheel.nanosUntilNext(T0 + 40 * MS));
+        assertFalse(wheel.advance(T0 + 140 * MS)); //Passes the slot of the last timer one revolution early
+        assertTrue(wheel.advance(T0 + 500 * MS));
+        assertEquals(0x04, wheel.highMask);
+    }
+
+    @Test
+    public void pastDeadlineFiresOnTheNextAdvance() {
+        TimerWheel wheel = new TimerWheel(T0);
+        assertFalse(wheel.advance(T0 + 10 * MS)); //The wheel moved on to T0 + 10 ms
+        TimerWheel.Timer late = wheel.schedule(T0 + 5 * MS, 0, 0x01, TimerWheel.ACTION_HIGH);
+        TimerWheel.Timer negative = wheel.schedule(T0 + 10 * MS - 3 * MS, 0, 0x02, TimerWheel.ACTION_LOW);
+        assertTrue(wheel.nanosUntilNext(T0 + 10 * MS) <= 0);
+        assertTrue(wheel.advance(T0 + 10 * MS + 1));
+        assertEquals(0x01, wheel.highMask);
+        assertEquals(0x02, wheel.lowMask);
+        assertEquals(1, late.getFired());
+        assertEquals(1, negative.getFired());
+        assertEquals(Long.MAX_VALUE, wheel.nanosUntilNext(T0 + 10 * MS + 1));
+    }
+
+    @Test
+    public void overdueTimerCanBeCancelled() {
+        TimerWheel wheel = new TimerWheel(T0);
+        assertFalse(wheel.advance(T0 + 10 * MS));
+        TimerWheel.Timer timer = wheel.schedule(T0 + MS, 0, 0x01, TimerWheel.ACTION_HIGH);
+        timer.cancel();
+        assertFalse(wheel.advance(T0 + 11 * MS));
+        assertEquals(0, timer.getFired());
+        assertEquals(Long.MAX_VALUE, wheel.nanosUntilNext(T0 + 11 * MS));
+    }
+
+    @Test
+    public void cancelledTimerDoesNotFire() {
+        TimerWheel wheel = new TimerWheel(T0);
+        TimerWheel.Timer timer = wheel.schedule(T0 + MS, MS, 0x01, TimerWheel.ACTION_TOGGLE);
+        assertTrue(wheel.advance(T0 + MS));
+        timer.cancel();
+        assertFalse(wheel.advance(T0 + 5 * MS));
+        assertEquals(1, timer.getFired());
+        assertEquals(Long.MAX_VALUE, wheel.nanosUntilNext(T0 + 5 * MS));
+    }
+
+    @Test
+    public void longStallFiresEveryDueTimerOnce() {
+        TimerWheel wheel = new TimerWheel(T0);
+        TimerWheel.Timer a = wheel.schedule(T0 + MS, 0, 0x01, TimerWheel.ACTION_HIGH);
+        TimerWheel.Timer b = wheel.schedule(T0 + 150 * MS, 0, 0x02, TimerWheel.ACTION_HIGH);
+        assertTrue(wheel.advance(T0 + 300 * MS)); //Longer than a revolution without a cycle
+        assertEquals(0x03, wheel.highMask);
+        assertEquals(1, a.getFired());
+        assertEquals(1, b.getFired());
+    }
+}